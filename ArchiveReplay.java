@@ -0,0 +1,336 @@
+/*
+ * ArchiveReplay
+ *
+ * Ryan Tenney 2007
+ *
+ * Stores observations from saved station documents instead of from NOAA,
+ * for backfilling history and for timing ingest without the network. The
+ * directory given is either a DocumentArchive, whose segments are read, or
+ * any tree of saved .xml documents.
+ *
+ * Segments, or runs of files, are shared out between one thread per core
+ * (fewer if the connection pool is smaller), each parsing with the same
+ * parser as retrieveAndStore and loading what it has into the database
+ * bulk_batch_size rows per transaction, on a connection of its own.
+ *
+ * An observation is skipped if one of the same station and time is already
+ * stored, looked up by its hash before each transaction, so history older
+ * than what is stored is still filled in. The archive holds the same
+ * observation many times over when a station is polled more often than it
+ * reports; the last dedup_capacity replayed are remembered, so those repeats
+ * don't each cost a lookup.
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ArchiveReplay
+{
+	// A segment of a DocumentArchive, or some saved documents
+	static class Unit
+	{
+		final File segment;
+		final List< File > files;
+
+		Unit( File segment, List< File > files )
+		{
+			this.segment = segment;
+			this.files = files;
+		}
+	}
+
+	// Saved .xml files handed to a thread at a time
+	final static int FILES_PER_UNIT = 256;
+
+	private final retrWeather r;
+	private final WeatherConfig config;
+	private final File directory;
+
+	// Observations replayed lately, by any thread
+	private final RecentObservations replayed;
+
+	private final AtomicLong documents = new AtomicLong();
+	private final AtomicLong rows = new AtomicLong();
+
+	public ArchiveReplay( retrWeather r, File directory )
+	{
+		this.r = r;
+		this.config = r.config();
+		this.directory = directory;
+		this.replayed = new RecentObservations( config.dedup_capacity );
+	}
+
+	// Collects the observations a worker has parsed until there are enough for a transaction
+	class Batch implements DocumentArchive.Visitor
+	{
+		final Connection connection;
+		final List< Map< String, Object > > pending = new ArrayList< Map< String, Object > >();
+		final List< byte[] > hashes = new ArrayList< byte[] >();
+		final Map< String, Long > newest = new HashMap< String, Long >();
+
+		Batch( Connection connection )
+		{
+			this.connection = connection;
+		}
+
+		public void document( String station_id, long fetched, String xml ) throws IOException
+		{
+			documents.incrementAndGet();
+			Observation observation;
+
+			try
+			{
+				observation = r.parseObservation( xml );
+			}
+			catch( RuntimeException rex )
+			{
+				Metrics.PARSE_ERRORS.inc();
+				System.err.println( "Error on Station ID: " + station_id );
+				rex.printStackTrace();
+				return;
+			}
+
+			long time = observation.time();
+			String id = observation.station_id() != null ? observation.station_id() : station_id;
+
+			if( time == retrWeather.NOT_A_DATE )
+			{
+				Metrics.PARSE_ERRORS.inc();
+				return;
+			}
+
+			if( !replayed.add( id, time ) )
+			{
+				Metrics.RECENT_HITS.inc();
+				return;
+			}
+
+			Map< String, Object > row = r.observationRow( observation, time );
+			pending.add( row );
+			if( row.get( "hash" ) != null )
+				hashes.add( (byte[])row.get( "hash" ) );
+
+			Long last = newest.get( id );
+			if( last == null || last.longValue() < time )
+				newest.put( id, time );
+
+			if( pending.size() >= config.bulk_batch_size )
+				flush();
+		}
+
+		void flush() throws IOException
+		{
+			if( pending.isEmpty() )
+				return;
+
+			if( retrWeather.SQL_ACTIVE )
+			{
+				try
+				{
+					Set< String > stored = r.storedHashes( connection, hashes );
+
+					for( Iterator< Map< String, Object > > i = pending.iterator(); i.hasNext(); )
+					{
+						byte[] hash = (byte[])i.next().get( "hash" );
+						if( hash != null && stored.contains( retrWeather.toHex( hash ) ) )
+						{
+							Metrics.STORED_HITS.inc();
+							i.remove();
+						}
+					}
+
+					if( !pending.isEmpty() )
+						r.storeRows( connection, pending, newest );
+				}
+				catch( SQLException sqlex )
+				{
+					IOException ioex = new IOException( "Replayed batch failed: " + sqlex.getMessage() );
+					ioex.initCause( sqlex );
+					throw ioex;
+				}
+			}
+
+			rows.addAndGet( pending.size() );
+			pending.clear();
+			hashes.clear();
+			newest.clear();
+		}
+	}
+
+	public void run()
+	{
+		if( !directory.isDirectory() )
+		{
+			System.err.println( "replay: " + directory + " is not a directory" );
+			return;
+		}
+
+		final BlockingQueue< Unit > units = new LinkedBlockingQueue< Unit >();
+		List< File > segments = DocumentArchive.segments( directory );
+
+		if( !segments.isEmpty() )
+		{
+			for( File segment : segments )
+				units.add( new Unit( segment, null ) );
+		}
+		else
+		{
+			List< File > files = new ArrayList< File >();
+			findDocuments( directory, files );
+			Collections.sort( files );
+
+			for( int i = 0; i < files.size(); i += FILES_PER_UNIT )
+				units.add( new Unit( null, new ArrayList< File >( files.subList( i, Math.min( files.size(), i + FILES_PER_UNIT ) ) ) ) );
+		}
+
+		int threads = Math.max( 1, Math.min( Math.min( Runtime.getRuntime().availableProcessors(), config.pool_size ), units.size() ) );
+		System.err.println( "replay: " + units.size() + ( segments.isEmpty() ? " runs of saved documents" : " archive segments" ) + " on " + threads + " threads" );
+
+		long start = System.currentTimeMillis();
+		ExecutorService pool = Executors.newFixedThreadPool( threads );
+		List< Future< Boolean > > workers = new ArrayList< Future< Boolean > >();
+
+		for( int i = 0; i < threads; i++ )
+		{
+			workers.add( pool.submit( new Callable< Boolean >() {
+				public Boolean call()
+				{
+					return work( units );
+				}
+			} ) );
+		}
+
+		boolean complete = true;
+
+		try
+		{
+			for( Future< Boolean > worker : workers )
+				complete &= worker.get().booleanValue();
+		}
+		catch( InterruptedException iex )
+		{
+			Thread.currentThread().interrupt();
+			complete = false;
+		}
+		catch( ExecutionException eex )
+		{
+			eex.getCause().printStackTrace();
+			complete = false;
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+
+		long elapsed = Math.max( 1, System.currentTimeMillis() - start );
+		System.err.println( "replay: " + documents.get() + " documents, " + rows.get() + " observations stored in " + elapsed + " ms ("
+							+ ( documents.get() * 1000 / elapsed ) + " documents/s)" + ( complete ? "" : ", stopped early" ) );
+	}
+
+	// Takes units off the queue until it is empty, on a pooled connection of its own
+	private boolean work( BlockingQueue< Unit > units )
+	{
+		Connection connection = null;
+
+		try
+		{
+			if( retrWeather.SQL_ACTIVE )
+				connection = r.borrowConnection();
+
+			Batch batch = new Batch( connection );
+			Unit unit;
+
+			while( ( unit = units.poll() ) != null )
+			{
+				if( unit.segment != null )
+				{
+					Metrics.ARCHIVE_REPLAYED.add( DocumentArchive.read( unit.segment, batch ) );
+				}
+				else
+				{
+					for( File file : unit.files )
+						batch.document( stationOf( file ), file.lastModified(), read( file ) );
+				}
+			}
+
+			batch.flush();
+			return true;
+		}
+		catch( SQLException sqlex )
+		{
+			Metrics.STORE_ERRORS.inc();
+			System.err.println("SQLException: " + sqlex.getMessage());
+			System.err.println("SQLState: " + sqlex.getSQLState());
+			System.err.println("VendorError: " + sqlex.getErrorCode());
+			r.invalidateConnection( connection );
+			connection = null;
+			return false;
+		}
+		catch( IOException ioex )
+		{
+			Metrics.STORE_ERRORS.inc();
+			ioex.printStackTrace();
+
+			// a batch that failed to store
+			if( ioex.getCause() instanceof SQLException )
+			{
+				r.invalidateConnection( connection );
+				connection = null;
+			}
+
+			return false;
+		}
+		finally
+		{
+			r.releaseConnection( connection );
+		}
+	}
+
+	private static void findDocuments( File directory, List< File > found )
+	{
+		File[] files = directory.listFiles();
+		if( files == null )
+			return;
+
+		for( File file : files )
+		{
+			if( file.isDirectory() )
+				findDocuments( file, found );
+			else if( file.getName().endsWith( ".xml" ) )
+				found.add( file );
+		}
+	}
+
+	// File name up to the first dot, as station_data_url saves them; only used if the document doesn't name its station
+	private static String stationOf( File file )
+	{
+		String name = file.getName();
+		int dot = name.indexOf( '.' );
+		return dot > 0 ? name.substring( 0, dot ) : name;
+	}
+
+	// A saved document, decoded as HttpFetcher would have decoded it
+	private static String read( File file ) throws IOException
+	{
+		byte[] data = new byte[ (int)file.length() ];
+		DataInputStream in = new DataInputStream( new FileInputStream( file ) );
+
+		try
+		{
+			in.readFully( data );
+		}
+		finally
+		{
+			in.close();
+		}
+
+		return new String( data, HttpFetcher.charsetOf( null, data, data.length ) );
+	}
+
+}
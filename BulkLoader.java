@@ -0,0 +1,326 @@
+/*
+ * BulkLoader
+ *
+ * Ryan Tenney 2007
+ *
+ * Queues rows as tab separated lines in a temporary file and sends each
+ * batch with one LOAD DATA LOCAL INFILE, MySQL's bulk load path, which is
+ * far quicker than batched INSERTs for large loads. As with InsertPlans,
+ * fields missing from a row are left out rather than loaded as NULL, so
+ * their column defaults apply: rows are kept in one file for each distinct
+ * set of fields present, loaded with a column list of just those.
+ *
+ * If the server or driver refuses LOAD DATA LOCAL (local_infile turned off,
+ * say), the batch and everything after it goes through InsertPlans instead,
+ * which is why the rows of the batch in progress are also held in memory;
+ * any file of them already loaded isn't sent again.
+ * Any other failure is thrown as it is.
+ *
+ * The file is read as UTF-8, which arbitrary binary such as the hash column
+ * isn't, so binary values are written in hex and loaded through UNHEX.
+ * Files are deleted once loaded, or by close() if they never are.
+ *
+ * Like any LOAD DATA LOCAL, rows that would duplicate a unique key are
+ * skipped rather than failing the load.
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.sql.*;
+import java.util.*;
+
+public class BulkLoader implements RowWriter
+{
+	final static Charset UTF8 = Charset.forName( "UTF-8" );
+
+	// \N is LOAD DATA's NULL
+	final static byte[] NULL = { '\\', 'N' };
+
+	// MySQL's ER_NOT_ALLOWED_COMMAND, for LOAD DATA LOCAL when local_infile is off
+	final static int NOT_ALLOWED = 1148;
+
+	// A temporary file of rows with one set of fields present
+	private static class Load
+	{
+		final String[] columns;
+		final File file;
+		OutputStream out;
+		final List< Map< String, ? extends Object > > rows = new ArrayList< Map< String, ? extends Object > >();
+		boolean loaded = false;
+
+		// Columns given a byte[] in any row, written in hex
+		final boolean[] binary;
+
+		Load( String[] columns ) throws IOException
+		{
+			this.columns = columns;
+			this.binary = new boolean[ columns.length ];
+			this.file = File.createTempFile( "retrWeather", ".tsv" );
+
+			try
+			{
+				this.out = new BufferedOutputStream( new FileOutputStream( file ), 64 * 1024 );
+			}
+			catch( IOException ioex )
+			{
+				file.delete();
+				throw ioex;
+			}
+		}
+
+		void discard()
+		{
+			try
+			{
+				if( out != null )
+					out.close();
+			}
+			catch( IOException ioex )
+			{
+				// the file is being deleted anyway
+			}
+
+			out = null;
+			file.delete();
+		}
+	}
+
+	private final Connection connection;
+	private final String table;
+	private final String[] fields;
+	private final String quote;
+
+	private final Map< BitSet, Load > loads = new LinkedHashMap< BitSet, Load >();
+	private int pending = 0;
+
+	// Set once LOAD DATA LOCAL has been refused
+	private InsertPlans fallback;
+
+	// table is used as given; field names are quoted with fieldQuoteChar
+	public BulkLoader( Connection connection, String table, String[] fields, String fieldQuoteChar )
+	{
+		this.connection = connection;
+		this.table = table;
+		this.fields = fields;
+		this.quote = fieldQuoteChar != null ? fieldQuoteChar : "";
+	}
+
+	// Queues a row; fields missing from the row are left out of the load, and the string "NA" is stored as NULL
+	public void add( Map< String, ? extends Object > row ) throws SQLException
+	{
+		if( fallback != null )
+		{
+			fallback.add( row );
+			return;
+		}
+
+		BitSet present = new BitSet( fields.length );
+
+		for( int i = 0; i < fields.length; i++ )
+		{
+			if( row.containsKey( fields[ i ] ) )
+				present.set( i );
+		}
+
+		try
+		{
+			Load load = loads.get( present );
+
+			if( load == null )
+			{
+				String[] columns = new String[ present.cardinality() ];
+				for( int i = present.nextSetBit( 0 ), c = 0; i >= 0; i = present.nextSetBit( i + 1 ), c++ )
+					columns[ c ] = fields[ i ];
+
+				load = new Load( columns );
+				loads.put( present, load );
+			}
+
+			for( int c = 0; c < load.columns.length; c++ )
+			{
+				Object value = row.get( load.columns[ c ] );
+				if( value instanceof byte[] )
+					load.binary[ c ] = true;
+
+				if( c > 0 )
+					load.out.write( '\t' );
+				write( load.out, value );
+			}
+
+			load.out.write( '\n' );
+			load.rows.add( row );
+			pending++;
+		}
+		catch( IOException ioex )
+		{
+			SQLException sqlex = new SQLException( "Can't write bulk load file: " + ioex.getMessage() );
+			sqlex.initCause( ioex );
+			throw sqlex;
+		}
+	}
+
+	public int pending()
+	{
+		return fallback != null ? fallback.pending() : pending;
+	}
+
+	public int execute() throws SQLException
+	{
+		if( fallback != null )
+			return fallback.execute();
+
+		if( pending == 0 )
+			return 0;
+
+		int sent = pending;
+
+		try
+		{
+			long start = System.nanoTime();
+			Statement s = connection.createStatement();
+
+			try
+			{
+				for( Load load : loads.values() )
+				{
+					load.out.close();
+					load.out = null;
+					s.execute( loadData( load ) );
+					load.loaded = true;
+				}
+			}
+			finally
+			{
+				s.close();
+			}
+
+			Metrics.INSERT_EXECUTE_LATENCY.recordSince( start );
+			Metrics.INSERT_BATCH_SIZE.record( sent );
+		}
+		catch( IOException ioex )
+		{
+			SQLException sqlex = new SQLException( "Can't write bulk load file: " + ioex.getMessage() );
+			sqlex.initCause( ioex );
+			throw sqlex;
+		}
+		catch( SQLException sqlex )
+		{
+			if( !isRefused( sqlex ) )
+				throw sqlex;
+
+			System.err.println( "LOAD DATA LOCAL INFILE refused, inserting row by row instead: " + sqlex.getMessage() );
+			Metrics.BULK_FALLBACKS.inc();
+
+			fallback = new InsertPlans( connection, table, fields, quote );
+			int loaded = 0;
+
+			for( Load load : loads.values() )
+			{
+				if( load.loaded )
+				{
+					loaded += load.rows.size();
+					continue;
+				}
+
+				for( Map< String, ? extends Object > row : load.rows )
+					fallback.add( row );
+			}
+
+			discard();
+
+			return loaded + fallback.execute();
+		}
+
+		discard();
+
+		return sent;
+	}
+
+	public void close()
+	{
+		if( fallback != null )
+			fallback.close();
+
+		discard();
+	}
+
+	// The server or the driver turning LOAD DATA LOCAL away, as opposed to the load itself failing
+	static boolean isRefused( SQLException sqlex )
+	{
+		String message = sqlex.getMessage();
+		return sqlex.getErrorCode() == NOT_ALLOWED || ( message != null && message.toLowerCase().indexOf( "not allowed" ) != -1 );
+	}
+
+	private void discard()
+	{
+		for( Load load : loads.values() )
+			load.discard();
+
+		loads.clear();
+		pending = 0;
+	}
+
+	private String loadData( Load load )
+	{
+		StringBuilder sql = new StringBuilder( "LOAD DATA LOCAL INFILE '" );
+
+		sql.append( load.file.getAbsolutePath().replace( "\\", "\\\\" ).replace( "'", "\\'" ) );
+		sql.append( "' INTO TABLE " ).append( table );
+		sql.append( " CHARACTER SET utf8 FIELDS TERMINATED BY '\\t' ESCAPED BY '\\\\' LINES TERMINATED BY '\\n' ( " );
+
+		StringBuilder set = new StringBuilder();
+
+		for( int c = 0; c < load.columns.length; c++ )
+		{
+			if( c > 0 )
+				sql.append( ", " );
+
+			if( load.binary[ c ] )
+			{
+				sql.append( "@v" ).append( c );
+				set.append( set.length() > 0 ? ", " : " SET " );
+				set.append( quote ).append( load.columns[ c ] ).append( quote ).append( " = UNHEX( @v" ).append( c ).append( " )" );
+			}
+			else
+			{
+				sql.append( quote ).append( load.columns[ c ] ).append( quote );
+			}
+		}
+
+		sql.append( " )" ).append( set ).append( ';' );
+
+		return sql.toString();
+	}
+
+	// Writes a value as LOAD DATA reads it back; as with InsertPlans, a missing value or "NA" is NULL, and binary goes in hex for UNHEX
+	private static void write( OutputStream out, Object value ) throws IOException
+	{
+		if( value == null || "NA".equals( value ) )
+			out.write( NULL );
+		else if( value instanceof byte[] )
+			out.write( RecordHasher.toHex( (byte[])value ).getBytes( UTF8 ) );
+		else
+			escape( out, value.toString().getBytes( UTF8 ) );
+	}
+
+	// Backslash-escapes the bytes that would end a field or line; none can occur inside a multibyte UTF-8 char
+	private static void escape( OutputStream out, byte[] data ) throws IOException
+	{
+		for( byte b : data )
+		{
+			switch( b )
+			{
+				case '\t': out.write( '\\' ); out.write( 't' ); break;
+				case '\n': out.write( '\\' ); out.write( 'n' ); break;
+				case '\r': out.write( '\\' ); out.write( 'r' ); break;
+				case '\\': out.write( '\\' ); out.write( '\\' ); break;
+				case 0: out.write( '\\' ); out.write( '0' ); break;
+				default: out.write( b );
+			}
+		}
+	}
+
+}
@@ -0,0 +1,291 @@
+/*
+ * ConnectionPool
+ *
+ * Ryan Tenney 2007
+ *
+ * A small pool of JDBC connections, so that fetch workers, the station list
+ * loader and the maintenance jobs can each write on a connection of their
+ * own. Connections are opened as they are needed, up to the pool size,
+ * checked before being handed out, and closed after sitting idle too long.
+ * A connection that fails its check is replaced with a new one, as is one
+ * handed back through invalidate() after a call on it failed, so losing the
+ * database only fails the calls made while it is unreachable.
+ *
+ * Insert plans prepared on a connection are kept with it, so a statement is
+ * prepared once per connection rather than once per transaction, and closed
+ * when the connection is.
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ConnectionPool
+{
+	// An idle connection and when it was last returned
+	private static class Idle
+	{
+		final Connection connection;
+		final long since;
+
+		Idle( Connection connection, long since )
+		{
+			this.connection = connection;
+			this.since = since;
+		}
+	}
+
+	private final String url;
+	private final String username;
+	private final String password;
+	private final String validationQuery;
+	private final long validateIdle;
+	private final long idleTimeout;
+	private final long borrowTimeout;
+
+	// One permit per connection that may be handed out
+	private final Semaphore permits;
+
+	// Most recently returned last, so the warmest connection is reused first
+	private final LinkedList< Idle > idle = new LinkedList< Idle >();
+
+	// Insert plans of each open connection, by table
+	private final Map< Connection, Map< String, InsertPlans > > plans = new IdentityHashMap< Connection, Map< String, InsertPlans > >();
+
+	private final ScheduledExecutorService evictor;
+	private volatile boolean closed = false;
+
+	// validateIdle, idleTimeout and borrowTimeout are in millis; connections idle for validateIdle or more are checked before reuse
+	public ConnectionPool( String url, String username, String password, int size, String validationQuery, long validateIdle, long idleTimeout, long borrowTimeout )
+	{
+		this.url = url;
+		this.username = username;
+		this.password = password;
+		this.validationQuery = validationQuery;
+		this.validateIdle = validateIdle;
+		this.idleTimeout = idleTimeout;
+		this.borrowTimeout = borrowTimeout;
+		this.permits = new Semaphore( Math.max( 1, size ), true );
+
+		this.evictor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+			public Thread newThread( Runnable r )
+			{
+				Thread t = new Thread( r, "ConnectionPool evictor" );
+				t.setDaemon( true );
+				return t;
+			}
+		} );
+
+		long period = Math.max( 1000, idleTimeout / 2 );
+		evictor.scheduleWithFixedDelay( new Runnable() {
+			public void run()
+			{
+				evictIdle();
+			}
+		}, period, period, TimeUnit.MILLISECONDS );
+	}
+
+	// Hands out a working connection, waiting up to the borrow timeout for one to be returned if all are in use
+	public Connection borrow() throws SQLException
+	{
+		if( closed )
+			throw new SQLException( "Connection pool is closed" );
+
+		try
+		{
+			if( !permits.tryAcquire( borrowTimeout, TimeUnit.MILLISECONDS ) )
+				throw new SQLException( "Timed out waiting for a database connection" );
+		}
+		catch( InterruptedException iex )
+		{
+			Thread.currentThread().interrupt();
+			throw new SQLException( "Interrupted waiting for a database connection" );
+		}
+
+		try
+		{
+			Idle candidate;
+
+			while( ( candidate = takeIdle() ) != null )
+			{
+				if( System.currentTimeMillis() - candidate.since < validateIdle || isValid( candidate.connection ) )
+					return candidate.connection;
+
+				closeQuietly( candidate.connection );
+			}
+
+			return DriverManager.getConnection( url, username, password );
+		}
+		catch( SQLException sqlex )
+		{
+			permits.release();
+			throw sqlex;
+		}
+		catch( RuntimeException rex )
+		{
+			permits.release();
+			throw rex;
+		}
+	}
+
+	// Returns a borrowed connection; anything left uncommitted is rolled back
+	public void release( Connection connection )
+	{
+		if( connection == null )
+			return;
+
+		try
+		{
+			if( closed || connection.isClosed() )
+			{
+				closeQuietly( connection );
+				return;
+			}
+
+			if( !connection.getAutoCommit() )
+			{
+				connection.rollback();
+				connection.setAutoCommit( true );
+			}
+
+			synchronized( idle )
+			{
+				idle.addLast( new Idle( connection, System.currentTimeMillis() ) );
+			}
+		}
+		catch( SQLException sqlex )
+		{
+			// broken; its place will be taken by a new connection
+			closeQuietly( connection );
+		}
+		finally
+		{
+			permits.release();
+		}
+	}
+
+	// Returns a borrowed connection that a call failed on; it is closed rather than reused, in case the failure was the connection's
+	public void invalidate( Connection connection )
+	{
+		if( connection == null )
+			return;
+
+		closeQuietly( connection );
+		permits.release();
+	}
+
+	// Insert plans for the table on a borrowed connection, made on first use and kept for as long as the connection is open.
+	// They must be left with nothing queued when the connection is released; a failed execute() is followed by invalidate().
+	public InsertPlans insertPlans( Connection connection, String table, String[] fields, String fieldQuoteChar )
+	{
+		synchronized( plans )
+		{
+			Map< String, InsertPlans > tables = plans.get( connection );
+			if( tables == null )
+			{
+				tables = new HashMap< String, InsertPlans >();
+				plans.put( connection, tables );
+			}
+
+			InsertPlans insert = tables.get( table );
+			if( insert == null )
+			{
+				insert = new InsertPlans( connection, table, fields, fieldQuoteChar );
+				tables.put( table, insert );
+			}
+
+			return insert;
+		}
+	}
+
+	public void close()
+	{
+		closed = true;
+		evictor.shutdownNow();
+
+		synchronized( idle )
+		{
+			for( Idle i : idle )
+				closeQuietly( i.connection );
+			idle.clear();
+		}
+	}
+
+	private Idle takeIdle()
+	{
+		synchronized( idle )
+		{
+			return idle.isEmpty() ? null : idle.removeLast();
+		}
+	}
+
+	// Closes connections that have been idle longer than the idle timeout
+	void evictIdle()
+	{
+		long cutoff = System.currentTimeMillis() - idleTimeout;
+		List< Connection > evicted = new ArrayList< Connection >();
+
+		synchronized( idle )
+		{
+			// oldest first, so stop at the first one still in use recently enough
+			while( !idle.isEmpty() && idle.getFirst().since < cutoff )
+				evicted.add( idle.removeFirst().connection );
+		}
+
+		for( Connection connection : evicted )
+			closeQuietly( connection );
+	}
+
+	private boolean isValid( Connection connection )
+	{
+		try
+		{
+			if( connection.isClosed() )
+				return false;
+
+			Statement s = connection.createStatement();
+			try
+			{
+				s.execute( validationQuery );
+				return true;
+			}
+			finally
+			{
+				s.close();
+			}
+		}
+		catch( SQLException sqlex )
+		{
+			return false;
+		}
+	}
+
+	private void closeQuietly( Connection connection )
+	{
+		Map< String, InsertPlans > tables;
+
+		synchronized( plans )
+		{
+			tables = plans.remove( connection );
+		}
+
+		if( tables != null )
+		{
+			for( InsertPlans insert : tables.values() )
+				insert.close();
+		}
+
+		try
+		{
+			connection.close();
+		}
+		catch( SQLException sqlex )
+		{
+			// it's being thrown away anyway
+		}
+	}
+
+}
@@ -0,0 +1,72 @@
+/*
+ * ConsistentHashRing
+ *
+ * Ryan Tenney 2007
+ *
+ * Assigns keys to nodes by consistent hashing. Each node is placed on the
+ * ring at several points, and a key belongs to the first node point at or
+ * after the key's own hash; adding or removing a node only moves the keys
+ * in the arcs next to its points.
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+public class ConsistentHashRing
+{
+	final static Charset UTF8 = Charset.forName( "UTF-8" );
+
+	private final TreeMap< Long, String > ring = new TreeMap< Long, String >();
+	private final Set< String > nodes;
+
+	public ConsistentHashRing( Collection< String > nodes, int virtualNodes )
+	{
+		this.nodes = Collections.unmodifiableSet( new TreeSet< String >( nodes ) );
+
+		for( String node : this.nodes )
+		{
+			for( int i = 0; i < virtualNodes; i++ )
+			{
+				ring.put( hash( node + "#" + i ), node );
+			}
+		}
+	}
+
+	public Set< String > nodes()
+	{
+		return nodes;
+	}
+
+	// Node owning the key, or null if the ring is empty
+	public String nodeFor( String key )
+	{
+		if( ring.isEmpty() )
+			return null;
+
+		SortedMap< Long, String > tail = ring.tailMap( hash( key ) );
+		return ring.get( tail.isEmpty() ? ring.firstKey() : tail.firstKey() );
+	}
+
+	// First 8 bytes of the key's MD5, which spreads short, similar ids like station ids evenly
+	static long hash( String key )
+	{
+		try
+		{
+			byte[] md5 = MessageDigest.getInstance( "MD5" ).digest( key.getBytes( UTF8 ) );
+			long h = 0;
+			for( int i = 0; i < 8; i++ )
+				h = ( h << 8 ) | ( md5[ i ] & 0xFF );
+			return h;
+		}
+		catch( NoSuchAlgorithmException nsaex )
+		{
+			throw new IllegalStateException( nsaex );
+		}
+	}
+
+}
@@ -0,0 +1,285 @@
+/*
+ * DocumentArchive
+ *
+ * Ryan Tenney 2007
+ *
+ * Append-only local archive of every station document fetched, kept so that
+ * a change to the parser or the schema can be run again over past
+ * observations from disk instead of from NOAA. Each document is deflated and
+ * appended to the current segment's data file, and an entry for it appended
+ * to the segment's index: station id, when it was fetched, where its
+ * compressed bytes start, their length and CRC32, and the inflated length.
+ * A segment is rolled over once its data file reaches archive_segment_mb.
+ *
+ * Documents are stored as the decoded text, in UTF-8, whatever charset they
+ * arrived in. Reading a segment stops at the first index entry that is short,
+ * points past the end of the data or fails its CRC, which is where a crash
+ * mid-write would have left it.
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.zip.*;
+
+public class DocumentArchive
+{
+	// Receives each archived document as a segment is read
+	public interface Visitor
+	{
+		void document( String station_id, long fetched, String xml ) throws IOException;
+	}
+
+	final static Charset UTF8 = Charset.forName( "UTF-8" );
+
+	final static String PREFIX = "raw-";
+	final static String DATA = ".dat";
+	final static String INDEX = ".idx";
+
+	// Largest document read back; anything bigger is taken as a corrupt entry
+	final static int MAX_DOCUMENT = 16 * 1024 * 1024;
+
+	private final File directory;
+	private final long segmentSize;
+
+	private FileChannel data;
+	private FileChannel index;
+	private long dataSize;
+	private long sequence = 0;
+
+	public DocumentArchive( File directory, long segmentSize ) throws IOException
+	{
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+
+		if( !directory.isDirectory() && !directory.mkdirs() )
+			throw new IOException( "Can't create archive directory " + directory );
+
+		for( File file : segments( directory ) )
+			sequence = Math.max( sequence, sequenceOf( file ) );
+	}
+
+	// Archives a fetched document
+	public void append( String station_id, long fetched, String xml ) throws IOException
+	{
+		byte[] raw = xml.getBytes( UTF8 );
+
+		// compressed on the fetching thread, outside the lock
+		byte[] compressed = deflate( raw );
+
+		CRC32 crc = new CRC32();
+		crc.update( compressed, 0, compressed.length );
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream( 64 );
+		DataOutputStream entry = new DataOutputStream( bytes );
+
+		synchronized( this )
+		{
+			if( data == null || dataSize >= segmentSize )
+				roll();
+
+			entry.writeUTF( station_id );
+			entry.writeLong( fetched );
+			entry.writeLong( dataSize );
+			entry.writeInt( compressed.length );
+			entry.writeInt( (int)crc.getValue() );
+			entry.writeInt( raw.length );
+			entry.flush();
+
+			write( data, compressed );
+			write( index, bytes.toByteArray() );
+			dataSize += compressed.length;
+		}
+
+		Metrics.ARCHIVE_APPENDED.inc();
+		Metrics.ARCHIVE_BYTES.add( compressed.length );
+	}
+
+	public synchronized void close() throws IOException
+	{
+		if( data != null )
+		{
+			data.close();
+			index.close();
+			data = null;
+			index = null;
+		}
+	}
+
+	// Index files of the segments in the directory, oldest first
+	public static List< File > segments( File directory )
+	{
+		File[] files = directory.listFiles( new FilenameFilter() {
+			public boolean accept( File dir, String name )
+			{
+				return name.startsWith( PREFIX ) && name.endsWith( INDEX );
+			}
+		} );
+
+		if( files == null )
+			return new ArrayList< File >();
+
+		Arrays.sort( files );
+		return new ArrayList< File >( Arrays.asList( files ) );
+	}
+
+	// Reads the documents of one segment, given its index file, in the order they were archived. Returns the number read.
+	public static int read( File segment, Visitor visitor ) throws IOException
+	{
+		File dataFile = new File( segment.getParentFile(), segment.getName().substring( 0, segment.getName().length() - INDEX.length() ) + DATA );
+		DataInputStream entries = new DataInputStream( new BufferedInputStream( new FileInputStream( segment ), 64 * 1024 ) );
+		RandomAccessFile documents = new RandomAccessFile( dataFile, "r" );
+		Inflater inflater = new Inflater();
+		int read = 0;
+
+		try
+		{
+			long length = documents.length();
+
+			while( true )
+			{
+				String station_id;
+				long fetched, offset;
+				int size, crc, rawSize;
+
+				try
+				{
+					station_id = entries.readUTF();
+					fetched = entries.readLong();
+					offset = entries.readLong();
+					size = entries.readInt();
+					crc = entries.readInt();
+					rawSize = entries.readInt();
+				}
+				catch( EOFException eofex )
+				{
+					break;
+				}
+
+				if( size < 0 || rawSize < 0 || rawSize > MAX_DOCUMENT || offset + size > length )
+				{
+					System.err.println( "Archive segment " + segment + " ends in a partly written document" );
+					break;
+				}
+
+				byte[] compressed = new byte[ size ];
+				documents.seek( offset );
+				documents.readFully( compressed );
+
+				CRC32 check = new CRC32();
+				check.update( compressed, 0, size );
+
+				if( (int)check.getValue() != crc )
+				{
+					System.err.println( "Archive segment " + segment + " has a bad checksum, reading no further" );
+					break;
+				}
+
+				visitor.document( station_id, fetched, new String( inflate( inflater, compressed, rawSize ), UTF8 ) );
+				read++;
+			}
+		}
+		finally
+		{
+			inflater.end();
+			documents.close();
+			entries.close();
+		}
+
+		return read;
+	}
+
+	// Ended as soon as it is done with, as read() does its Inflater, rather than leaving its native memory to the finalizer
+	private static byte[] deflate( byte[] raw )
+	{
+		Deflater deflater = new Deflater( Deflater.DEFAULT_COMPRESSION );
+		ByteArrayOutputStream out = new ByteArrayOutputStream( raw.length / 3 + 64 );
+		byte[] buf = new byte[ 8192 ];
+
+		try
+		{
+			deflater.setInput( raw );
+			deflater.finish();
+
+			while( !deflater.finished() )
+			{
+				int n = deflater.deflate( buf );
+				out.write( buf, 0, n );
+			}
+		}
+		finally
+		{
+			deflater.end();
+		}
+
+		return out.toByteArray();
+	}
+
+	private static byte[] inflate( Inflater inflater, byte[] compressed, int rawSize ) throws IOException
+	{
+		inflater.reset();
+		inflater.setInput( compressed );
+		byte[] raw = new byte[ rawSize ];
+
+		try
+		{
+			int n = 0;
+			while( n < rawSize && !inflater.finished() )
+			{
+				int r = inflater.inflate( raw, n, rawSize - n );
+				if( r == 0 && ( inflater.needsInput() || inflater.needsDictionary() ) )
+					break;
+				n += r;
+			}
+
+			if( n != rawSize )
+				throw new IOException( "Archived document inflated to " + n + " bytes, expected " + rawSize );
+		}
+		catch( DataFormatException dfex )
+		{
+			IOException ioex = new IOException( "Corrupt archived document: " + dfex.getMessage() );
+			ioex.initCause( dfex );
+			throw ioex;
+		}
+
+		return raw;
+	}
+
+	// Closes the current segment, if any, and starts the next
+	private void roll() throws IOException
+	{
+		close();
+
+		String name = PREFIX + String.format( "%016d", ++sequence );
+		data = new FileOutputStream( new File( directory, name + DATA ), true ).getChannel();
+		index = new FileOutputStream( new File( directory, name + INDEX ), true ).getChannel();
+		dataSize = 0;
+	}
+
+	private static void write( FileChannel channel, byte[] bytes ) throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.wrap( bytes );
+		while( buf.hasRemaining() )
+			channel.write( buf );
+	}
+
+	static long sequenceOf( File file )
+	{
+		String name = file.getName();
+
+		try
+		{
+			return Long.parseLong( name.substring( PREFIX.length(), name.length() - INDEX.length() ) );
+		}
+		catch( NumberFormatException nfex )
+		{
+			return 0;
+		}
+	}
+
+}
@@ -0,0 +1,104 @@
+/*
+ * FileShardCoordinator
+ *
+ * Ryan Tenney 2007
+ *
+ * ShardCoordinator keeping one lease file per worker in a shared directory
+ * (shard_directory). Each file holds the time its lease runs out, written by
+ * the worker itself, so the directory's own timestamps don't matter.
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.io.*;
+import java.util.*;
+
+public class FileShardCoordinator implements ShardCoordinator
+{
+	final static String suffix = ".lease";
+
+	private File directory;
+	private long lease;
+
+	public void init( WeatherConfig config ) throws IOException
+	{
+		directory = new File( config.shard_directory );
+		lease = config.shard_lease;
+
+		if( !directory.isDirectory() && !directory.mkdirs() )
+			throw new IOException( "Can't create shard directory " + directory );
+	}
+
+	public void heartbeat( String worker ) throws IOException
+	{
+		// written alongside and renamed over, so a reader never sees a partial file
+		File tmp = new File( directory, worker + suffix + ".tmp" );
+		Writer out = new OutputStreamWriter( new FileOutputStream( tmp ), "US-ASCII" );
+
+		try
+		{
+			out.write( Long.toString( System.currentTimeMillis() + lease ) );
+		}
+		finally
+		{
+			out.close();
+		}
+
+		File file = new File( directory, worker + suffix );
+		if( !tmp.renameTo( file ) )
+		{
+			file.delete();
+			if( !tmp.renameTo( file ) )
+				throw new IOException( "Can't renew lease " + file );
+		}
+	}
+
+	public void leave( String worker ) throws IOException
+	{
+		new File( directory, worker + suffix ).delete();
+	}
+
+	public Set< String > liveWorkers() throws IOException
+	{
+		Set< String > live = new TreeSet< String >();
+		File[] files = directory.listFiles();
+		long now = System.currentTimeMillis();
+
+		if( files == null )
+			throw new IOException( "Can't list shard directory " + directory );
+
+		for( File file : files )
+		{
+			String name = file.getName();
+			if( !name.endsWith( suffix ) )
+				continue;
+
+			try
+			{
+				BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( file ), "US-ASCII" ) );
+				try
+				{
+					String expires = in.readLine();
+					if( expires != null && Long.parseLong( expires.trim() ) > now )
+						live.add( name.substring( 0, name.length() - suffix.length() ) );
+				}
+				finally
+				{
+					in.close();
+				}
+			}
+			catch( FileNotFoundException fnfex )
+			{
+				// left between listing and reading
+			}
+			catch( NumberFormatException nfex )
+			{
+				// being written by an older worker, or garbage; not a live lease
+			}
+		}
+
+		return live;
+	}
+
+}
@@ -0,0 +1,297 @@
+/*
+ * HttpFetcher
+ *
+ * Ryan Tenney 2007
+ *
+ * Fetches documents over HTTP, reusing kept-alive connections and read buffers
+ * between requests. Every request has a connect and a read timeout, so a
+ * stalled server fails the request instead of hanging it; given a deadline,
+ * both are cut short to end by it, and a connection still open when it
+ * passes, on a response trickling in say, is disconnected. Responses are
+ * asked for gzipped and inflated as they are read.
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.Charset;
+import java.util.concurrent.*;
+import java.util.regex.*;
+import java.util.zip.GZIPInputStream;
+
+public class HttpFetcher
+{
+	// Adds the bytes read through it to Metrics.FETCH_BYTES; these are the bytes sent, before any gzip is undone
+	private static class CountingInputStream extends FilterInputStream
+	{
+		CountingInputStream( InputStream in )
+		{
+			super( in );
+		}
+
+		public int read() throws IOException
+		{
+			int b = super.read();
+			if( b != -1 )
+				Metrics.FETCH_BYTES.inc();
+			return b;
+		}
+
+		public int read( byte[] b, int off, int len ) throws IOException
+		{
+			int n = super.read( b, off, len );
+			if( n > 0 )
+				Metrics.FETCH_BYTES.add( n );
+			return n;
+		}
+
+		public long skip( long n ) throws IOException
+		{
+			long skipped = super.skip( n );
+			Metrics.FETCH_BYTES.add( skipped );
+			return skipped;
+		}
+	}
+
+	// Charset assumed when neither the Content-Type header nor the XML declaration name one
+	final static Charset DEFAULT_CHARSET = Charset.forName( "UTF-8" );
+
+	final static Pattern contentTypeCharset = Pattern.compile( "charset\\s*=\\s*\"?([a-zA-Z0-9_\\-.:]+)", Pattern.CASE_INSENSITIVE );
+	final static Pattern xmlEncoding = Pattern.compile( "^<\\?xml[^>]*encoding\\s*=\\s*[\"']([a-zA-Z0-9_\\-.:]+)[\"']" );
+
+	// Bytes of the document sniffed for an XML declaration
+	final static int PROLOG_LENGTH = 128;
+
+	// Response body of the last fetch on each thread; grown as needed and never shrunk
+	private final ThreadLocal< byte[] > buffers = new ThreadLocal< byte[] >() {
+		protected byte[] initialValue()
+		{
+			return new byte[ 16 * 1024 ];
+		}
+	};
+
+	// Disconnects fetches still running at their deadline, which the timeouts alone can't do: they bound each wait, not the total
+	private final static ScheduledExecutorService cutoffs = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+		public Thread newThread( Runnable r )
+		{
+			Thread t = new Thread( r, "HttpFetcher deadlines" );
+			t.setDaemon( true );
+			return t;
+		}
+	} );
+
+	// Millis allowed to connect, and to wait on any one read; 0 for no limit
+	private final int connectTimeout;
+	private final int readTimeout;
+
+	public HttpFetcher( int maxConnections )
+	{
+		this( maxConnections, 0, 0 );
+	}
+
+	public HttpFetcher( int maxConnections, int connectTimeout, int readTimeout )
+	{
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+
+		// The JDK keeps idle connections alive in a shared cache, which by default only holds 5 per host.
+		// This has to be raised before the first request is made to take effect.
+		if( System.getProperty( "http.maxConnections" ) == null )
+			System.setProperty( "http.maxConnections", Integer.toString( Math.max( 5, maxConnections ) ) );
+	}
+
+	// Opens the response body as a Reader, decoded with the charset from the Content-Type header or the XML declaration
+	public Reader openReader( String url ) throws MalformedURLException, IOException
+	{
+		URLConnection conn = connect( url, Long.MAX_VALUE );
+		InputStream in = new BufferedInputStream( open( conn ), 8192 );
+
+		byte[] prolog = new byte[ PROLOG_LENGTH ];
+		in.mark( PROLOG_LENGTH );
+		int n = 0, r;
+		while( n < PROLOG_LENGTH && ( r = in.read( prolog, n, PROLOG_LENGTH - n ) ) > 0 )
+			n += r;
+		in.reset();
+
+		return new InputStreamReader( in, charsetOf( conn.getContentType(), prolog, n ) );
+	}
+
+	// Fetches the whole response body as a String
+	public String fetch( String url ) throws MalformedURLException, IOException
+	{
+		return fetch( url, Long.MAX_VALUE );
+	}
+
+	// as above, failing once deadline (epoch millis) has passed: the timeouts are cut short to end by it, and the connection is dropped at it
+	public String fetch( String url, long deadline ) throws MalformedURLException, IOException
+	{
+		final URLConnection conn = connect( url, deadline );
+		Future< ? > cutoff = null;
+
+		if( deadline != Long.MAX_VALUE && conn instanceof HttpURLConnection )
+		{
+			cutoff = cutoffs.schedule( new Runnable() {
+				public void run()
+				{
+					( (HttpURLConnection)conn ).disconnect();
+				}
+			}, deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS );
+		}
+
+		byte[] buf = buffers.get();
+		int len = 0;
+
+		try
+		{
+			InputStream in = open( conn );
+
+			try
+			{
+				int r;
+				while( ( r = in.read( buf, len, buf.length - len ) ) != -1 )
+				{
+					len += r;
+					if( len == buf.length )
+					{
+						byte[] grown = new byte[ buf.length * 2 ];
+						System.arraycopy( buf, 0, grown, 0, len );
+						buf = grown;
+						buffers.set( buf );
+					}
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch( IOException ioex )
+		{
+			if( System.currentTimeMillis() < deadline )
+				throw ioex;
+
+			// most likely disconnected by the cutoff
+			SocketTimeoutException stex = new SocketTimeoutException( "Run deadline passed fetching " + url );
+			stex.initCause( ioex );
+			throw stex;
+		}
+		finally
+		{
+			if( cutoff != null )
+				cutoff.cancel( false );
+		}
+
+		return new String( buf, 0, len, charsetOf( conn.getContentType(), buf, len ) );
+	}
+
+	// Picks the charset named by the Content-Type header, then by the XML declaration, falling back to UTF-8
+	public static Charset charsetOf( String contentType, byte[] data, int len )
+	{
+		String name = null;
+
+		if( contentType != null )
+		{
+			Matcher m = contentTypeCharset.matcher( contentType );
+			if( m.find() )
+				name = m.group( 1 );
+		}
+
+		if( name == null && len > 5 && data[ 0 ] == '<' && data[ 1 ] == '?' )
+		{
+			int end = 0;
+			while( end < Math.min( len, PROLOG_LENGTH ) && data[ end ] != '>' )
+				end++;
+
+			Matcher m = xmlEncoding.matcher( new String( data, 0, end + 1 < len ? end + 1 : len, Charset.forName( "US-ASCII" ) ) );
+			if( m.find() )
+				name = m.group( 1 );
+		}
+
+		try
+		{
+			if( name != null )
+				return Charset.forName( name );
+		}
+		catch( IllegalArgumentException iaex )
+		{
+			// unknown or malformed charset name, use the default
+		}
+
+		return DEFAULT_CHARSET;
+	}
+
+	private URLConnection connect( String url, long deadline ) throws MalformedURLException, IOException
+	{
+		URLConnection conn = new URL( url ).openConnection();
+		conn.setConnectTimeout( timeout( connectTimeout, deadline, url ) );
+		conn.setReadTimeout( timeout( readTimeout, deadline, url ) );
+		conn.setRequestProperty( "Accept-Encoding", "gzip" );
+		return conn;
+	}
+
+	// The timeout, or the millis left before deadline if fewer; 0 is no limit, as for URLConnection
+	private static int timeout( int timeout, long deadline, String url ) throws SocketTimeoutException
+	{
+		if( deadline == Long.MAX_VALUE )
+			return timeout;
+
+		long remaining = deadline - System.currentTimeMillis();
+		if( remaining <= 0 )
+			throw new SocketTimeoutException( "Run deadline passed fetching " + url );
+
+		return (int)( timeout > 0 ? Math.min( timeout, remaining ) : Math.min( Integer.MAX_VALUE, remaining ) );
+	}
+
+	// Returns the response body, inflated if it was gzipped; on an error status the error body is drained first so the connection can be reused
+	private InputStream open( URLConnection conn ) throws IOException
+	{
+		try
+		{
+			InputStream in = new CountingInputStream( conn.getInputStream() );
+			String encoding = conn.getContentEncoding();
+
+			if( encoding != null && ( encoding.equalsIgnoreCase( "gzip" ) || encoding.equalsIgnoreCase( "x-gzip" ) ) )
+			{
+				try
+				{
+					return new GZIPInputStream( in, 8192 );
+				}
+				catch( IOException ioex )
+				{
+					// a bad gzip header; the body is abandoned, closing the connection rather than leaking it
+					in.close();
+					throw ioex;
+				}
+			}
+
+			return in;
+		}
+		catch( IOException ioex )
+		{
+			if( conn instanceof HttpURLConnection )
+				drain( ( (HttpURLConnection)conn ).getErrorStream() );
+			throw ioex;
+		}
+	}
+
+	// Reads an error response to the end so the connection can go back into the keep-alive cache
+	private void drain( InputStream in )
+	{
+		if( in == null )
+			return;
+
+		try
+		{
+			byte[] buf = buffers.get();
+			while( in.read( buf ) != -1 );
+			in.close();
+		}
+		catch( IOException ioex )
+		{
+			// the connection will simply not be reused
+		}
+	}
+
+}
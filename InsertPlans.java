@@ -0,0 +1,186 @@
+/*
+ * InsertPlans
+ *
+ * Ryan Tenney 2007
+ *
+ * Batches rows into parameterized INSERT statements, preparing one statement
+ * for each distinct set of columns present in the rows added
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.sql.*;
+import java.util.*;
+
+public class InsertPlans implements RowWriter
+{
+	// A prepared INSERT for one set of columns, and the rows queued on it
+	private static class Plan
+	{
+		final PreparedStatement statement;
+		final String[] columns;
+		int pending = 0;
+
+		Plan( PreparedStatement statement, String[] columns )
+		{
+			this.statement = statement;
+			this.columns = columns;
+		}
+	}
+
+	private final Connection connection;
+	private final String table;
+	private final String[] fields;
+	private final String quote;
+
+	private final Map< BitSet, Plan > plans = new HashMap< BitSet, Plan >();
+	private int pending = 0;
+
+	// table is inserted as given; field names are quoted with fieldQuoteChar
+	public InsertPlans( Connection connection, String table, String[] fields, String fieldQuoteChar )
+	{
+		this.connection = connection;
+		this.table = table;
+		this.fields = fields;
+		this.quote = fieldQuoteChar != null ? fieldQuoteChar : "";
+	}
+
+	// Queues a row; fields missing from the row are left out of the insert, and the string "NA" is stored as NULL
+	public void add( Map< String, ? extends Object > row ) throws SQLException
+	{
+		BitSet present = new BitSet( fields.length );
+
+		for( int i = 0; i < fields.length; i++ )
+		{
+			if( row.containsKey( fields[ i ] ) )
+				present.set( i );
+		}
+
+		Plan plan = plans.get( present );
+
+		if( plan == null )
+		{
+			plan = prepare( present );
+			plans.put( present, plan );
+		}
+
+		for( int i = 0; i < plan.columns.length; i++ )
+		{
+			bind( plan.statement, i + 1, row.get( plan.columns[ i ] ) );
+		}
+
+		plan.statement.addBatch();
+		plan.pending++;
+		pending++;
+	}
+
+	// Number of rows queued since the last execute()
+	public int pending()
+	{
+		return pending;
+	}
+
+	// Sends every queued row, returning the number of rows sent
+	public int execute() throws SQLException
+	{
+		int sent = 0;
+
+		for( Plan plan : plans.values() )
+		{
+			if( plan.pending > 0 )
+			{
+				long start = System.nanoTime();
+				plan.statement.executeBatch();
+				Metrics.INSERT_EXECUTE_LATENCY.recordSince( start );
+				Metrics.INSERT_BATCH_SIZE.record( plan.pending );
+				sent += plan.pending;
+				pending -= plan.pending;
+				plan.pending = 0;
+			}
+		}
+
+		return sent;
+	}
+
+	// Discards queued rows without sending them
+	public void clear() throws SQLException
+	{
+		for( Plan plan : plans.values() )
+		{
+			plan.statement.clearBatch();
+			plan.pending = 0;
+		}
+
+		pending = 0;
+	}
+
+	public void close()
+	{
+		for( Plan plan : plans.values() )
+		{
+			try
+			{
+				plan.statement.close();
+			}
+			catch( SQLException sqlex )
+			{
+				// nothing more to be done with it
+			}
+		}
+
+		plans.clear();
+		pending = 0;
+	}
+
+	private Plan prepare( BitSet present ) throws SQLException
+	{
+		String[] columns = new String[ present.cardinality() ];
+		StringBuilder sql = new StringBuilder( "INSERT INTO " );
+
+		sql.append( table );
+		sql.append( " (" );
+
+		for( int i = present.nextSetBit( 0 ), c = 0; i >= 0; i = present.nextSetBit( i + 1 ), c++ )
+		{
+			columns[ c ] = fields[ i ];
+			if( c > 0 )
+				sql.append( " ," );
+			sql.append( ' ' ).append( quote ).append( fields[ i ] ).append( quote );
+		}
+
+		sql.append( " ) VALUES (" );
+
+		for( int c = 0; c < columns.length; c++ )
+		{
+			sql.append( c > 0 ? " , ?" : " ?" );
+		}
+
+		sql.append( " );" );
+
+		return new Plan( connection.prepareStatement( sql.toString() ), columns );
+	}
+
+	static void bind( PreparedStatement ps, int index, Object value ) throws SQLException
+	{
+		if( value == null || "NA".equals( value ) )
+			ps.setNull( index, Types.VARCHAR );
+		else if( value instanceof String )
+			ps.setString( index, (String)value );
+		else if( value instanceof Long )
+			ps.setLong( index, ( (Long)value ).longValue() );
+		else if( value instanceof Integer )
+			ps.setInt( index, ( (Integer)value ).intValue() );
+		else if( value instanceof Double )
+			ps.setDouble( index, ( (Double)value ).doubleValue() );
+		else if( value instanceof Float )
+			ps.setFloat( index, ( (Float)value ).floatValue() );
+		else if( value instanceof Timestamp )
+			ps.setTimestamp( index, (Timestamp)value );
+		else if( value instanceof byte[] )
+			ps.setBytes( index, (byte[])value );
+		else
+			ps.setObject( index, value );
+	}
+
+}
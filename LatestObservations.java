@@ -0,0 +1,122 @@
+/*
+ * LatestObservations
+ *
+ * Ryan Tenney 2007
+ *
+ * The latest observation of each station, already serialized as the UTF-8
+ * bytes of a <current_observation> element so it can be written straight to
+ * a response. Bounded by the total size of the bodies held; once over, the
+ * stations looked up least recently are dropped first.
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.nio.charset.Charset;
+import java.util.*;
+
+public class LatestObservations
+{
+	final static Charset UTF8 = Charset.forName( "UTF-8" );
+
+	// Rough bookkeeping cost of an entry besides its body
+	final static int ENTRY_OVERHEAD = 96;
+
+	// A serialized observation and when it was made
+	public static class Entry
+	{
+		public final long time;
+		public final byte[] body;
+
+		Entry( long time, byte[] body )
+		{
+			this.time = time;
+			this.body = body;
+		}
+	}
+
+	// Least recently used first
+	private final LinkedHashMap< String, Entry > entries = new LinkedHashMap< String, Entry >( 1024, 0.75f, true );
+	private final long maxBytes;
+	private final String[] fields;
+	private long bytes = 0;
+
+	// fields are written in the order given, leaving out any a station doesn't have
+	public LatestObservations( long maxBytes, String[] fields )
+	{
+		this.maxBytes = maxBytes;
+		this.fields = fields;
+	}
+
+	// Serializes and holds the observation, unless one at least as new is already held; pairs are column values, as stored
+	public void put( String station_id, long timeInMillis, Map< String, ? extends Object > pairs )
+	{
+		synchronized( this )
+		{
+			Entry held = entries.get( station_id );
+			if( held != null && held.time >= timeInMillis )
+				return;
+		}
+
+		Entry entry = new Entry( timeInMillis, serialize( pairs ) );
+
+		synchronized( this )
+		{
+			Entry held = entries.get( station_id );
+			if( held != null && held.time >= timeInMillis )
+				return;
+
+			entries.put( station_id, entry );
+			bytes += entry.body.length + ENTRY_OVERHEAD - ( held != null ? held.body.length + ENTRY_OVERHEAD : 0 );
+
+			Iterator< Entry > eldest = entries.values().iterator();
+			while( bytes > maxBytes && eldest.hasNext() )
+			{
+				Entry e = eldest.next();
+				if( e == entry )
+					break;
+
+				bytes -= e.body.length + ENTRY_OVERHEAD;
+				eldest.remove();
+			}
+		}
+	}
+
+	public synchronized Entry get( String station_id )
+	{
+		return entries.get( station_id );
+	}
+
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	public synchronized long bytes()
+	{
+		return bytes;
+	}
+
+	// Values are plain text, as the parser unescaped them or the database returned them, so they are only escaped
+	byte[] serialize( Map< String, ? extends Object > pairs )
+	{
+		StringBuilder sb = new StringBuilder( 1024 );
+		sb.append( "<current_observation>\n" );
+
+		for( String field : fields )
+		{
+			Object value = pairs.get( field );
+			if( value == null )
+				continue;
+
+			sb.append( "\t<" ).append( field ).append( '>' );
+			sb.append( retrWeather.escapeChars( value.toString() ) );
+			sb.append( "</" ).append( field ).append( ">\n" );
+		}
+
+		sb.append( "</current_observation>\n" );
+
+		return sb.toString().getBytes( UTF8 );
+	}
+
+}
@@ -0,0 +1,360 @@
+/*
+ * MaintenanceJob
+ *
+ * Ryan Tenney 2007
+ *
+ * Rewrites a column of every row in `weather`.`observed`. The id range is
+ * cut into fixed chunks that are worked through in parallel, each on its own
+ * connection; within a chunk rows are read in id order a page at a time, and
+ * every page is updated in one batch and committed. The last id committed in
+ * each chunk is written to a checkpoint file, so a job that is stopped picks
+ * up where it left off when run again.
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public abstract class MaintenanceJob
+{
+	// Reparses `observation_time_rfc822` into `observation_time` and `observation_time_posix`
+	public static class ReparseDates extends MaintenanceJob
+	{
+		public ReparseDates( retrWeather r )
+		{
+			super( r, "up_date" );
+		}
+
+		String columns()
+		{
+			return "`observation_time_rfc822`";
+		}
+
+		String update()
+		{
+			return "UPDATE `weather`.`observed` SET `observation_time` = ?, `observation_time_posix` = ? WHERE `id` = ?;";
+		}
+
+		boolean bind( ResultSet row, PreparedStatement update ) throws SQLException
+		{
+			long t = retrWeather.parseRfc822Millis( row.getString( "observation_time_rfc822" ), config.datetime_utc );
+			if( t == retrWeather.NOT_A_DATE )
+				return false;
+
+			update.setTimestamp( 1, new Timestamp( t ) );
+			update.setLong( 2, t );
+			update.setLong( 3, row.getLong( "id" ) );
+			return true;
+		}
+	}
+
+	// Hashes `station_id` and `observation_time_posix` into `hash`
+	public static class Rehash extends MaintenanceJob
+	{
+		public Rehash( retrWeather r )
+		{
+			super( r, "rehash" );
+		}
+
+		String columns()
+		{
+			return "`station_id`, `observation_time_posix`";
+		}
+
+		String update()
+		{
+			return "UPDATE `weather`.`observed` SET `hash` = ? WHERE `id` = ?;";
+		}
+
+		boolean bind( ResultSet row, PreparedStatement update ) throws SQLException
+		{
+			long time = row.getLong( "observation_time_posix" );
+			if( row.wasNull() )
+				return false;
+
+			update.setBytes( 1, retrWeather.hashRecord( row.getString( "station_id" ), time ) );
+			update.setLong( 2, row.getLong( "id" ) );
+			return true;
+		}
+	}
+
+	protected final retrWeather r;
+	protected final WeatherConfig config;
+	protected final String name;
+
+	private final Properties checkpoint = new Properties();
+	private final File checkpointFile;
+	private final AtomicLong rows = new AtomicLong();
+
+	// Rows updated and time taken per page, over every run of this job in the process
+	private final Metrics.Counter rowsUpdated;
+	private final Metrics.Histogram pageTime;
+
+	protected MaintenanceJob( retrWeather r, String name )
+	{
+		this.r = r;
+		this.config = r.config();
+		this.name = name;
+		this.checkpointFile = new File( config.maintenance_checkpoint_dir, name + ".checkpoint" );
+		this.rowsUpdated = Metrics.counter( name + "_rows_updated" );
+		this.pageTime = Metrics.histogram( name + "_page_time", "us" );
+	}
+
+	// Columns to read besides `id`
+	abstract String columns();
+
+	// Parameterized UPDATE of one row
+	abstract String update();
+
+	// Binds the update for a row, or returns false to leave the row alone
+	abstract boolean bind( ResultSet row, PreparedStatement update ) throws SQLException;
+
+	// Runs every chunk not yet finished, returning true once the whole table is done
+	public boolean run()
+	{
+		long min, max;
+
+		try
+		{
+			loadCheckpoint();
+
+			Connection connection = r.borrowConnection();
+			try
+			{
+				Statement s = connection.createStatement();
+				ResultSet rs = s.executeQuery( "SELECT MIN( `id` ), MAX( `id` ) FROM `weather`.`observed`;" );
+				rs.next();
+				min = rs.getLong( 1 );
+				max = rs.getLong( 2 );
+				s.close();
+			}
+			catch( SQLException sqlex )
+			{
+				r.invalidateConnection( connection );
+				connection = null;
+				throw sqlex;
+			}
+			finally
+			{
+				r.releaseConnection( connection );
+			}
+		}
+		catch( IOException ioex )
+		{
+			Metrics.MAINTENANCE_ERRORS.inc();
+			ioex.printStackTrace();
+			return false;
+		}
+		catch( SQLException sqlex )
+		{
+			Metrics.MAINTENANCE_ERRORS.inc();
+			printSQLException( sqlex );
+			return false;
+		}
+
+		// chunks start at multiples of the chunk size, so they line up with the checkpoint of an earlier run
+		final BlockingQueue< Long > chunks = new LinkedBlockingQueue< Long >();
+		long size = config.maintenance_chunk_size;
+
+		for( long start = min - ( ( min % size ) + size ) % size; start <= max; start += size )
+		{
+			if( !"done".equals( checkpoint.getProperty( Long.toString( start ) ) ) )
+				chunks.add( start );
+		}
+
+		System.err.println( name + ": " + chunks.size() + " chunks of " + size + " ids to do" );
+
+		int threads = Math.max( 1, Math.min( Math.min( config.maintenance_threads, config.pool_size ), chunks.size() ) );
+		ExecutorService pool = Executors.newFixedThreadPool( threads );
+		List< Future< Boolean > > workers = new ArrayList< Future< Boolean > >();
+
+		for( int i = 0; i < threads; i++ )
+		{
+			workers.add( pool.submit( new Callable< Boolean >() {
+				public Boolean call()
+				{
+					return work( chunks );
+				}
+			} ) );
+		}
+
+		boolean complete = true;
+
+		try
+		{
+			for( Future< Boolean > worker : workers )
+				complete &= worker.get().booleanValue();
+		}
+		catch( InterruptedException iex )
+		{
+			Thread.currentThread().interrupt();
+			complete = false;
+		}
+		catch( ExecutionException eex )
+		{
+			eex.getCause().printStackTrace();
+			complete = false;
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+
+		System.err.println( name + ": " + rows.get() + " rows updated" + ( complete ? "" : ", stopped early; run again to resume" ) );
+
+		if( complete )
+			checkpointFile.delete();
+
+		return complete;
+	}
+
+	// Takes chunks off the queue until it is empty, on a pooled connection of its own
+	private boolean work( BlockingQueue< Long > chunks )
+	{
+		Connection connection = null;
+
+		try
+		{
+			connection = r.borrowConnection();
+			connection.setAutoCommit( false );
+
+			PreparedStatement select = connection.prepareStatement(
+				"SELECT `id`, " + columns() + " FROM `weather`.`observed` WHERE `id` > ? AND `id` < ? ORDER BY `id` LIMIT " + config.maintenance_batch_size + ";" );
+			PreparedStatement update = connection.prepareStatement( update() );
+
+			Long chunk;
+			while( ( chunk = chunks.poll() ) != null )
+			{
+				doChunk( connection, select, update, chunk.longValue() );
+			}
+
+			select.close();
+			update.close();
+			return true;
+		}
+		catch( SQLException sqlex )
+		{
+			Metrics.MAINTENANCE_ERRORS.inc();
+			printSQLException( sqlex );
+			r.invalidateConnection( connection );
+			connection = null;
+			return false;
+		}
+		catch( IOException ioex )
+		{
+			Metrics.MAINTENANCE_ERRORS.inc();
+			ioex.printStackTrace();
+			return false;
+		}
+		finally
+		{
+			r.releaseConnection( connection );
+		}
+	}
+
+	private void doChunk( Connection connection, PreparedStatement select, PreparedStatement update, long start ) throws SQLException, IOException
+	{
+		String key = Long.toString( start );
+		String resume = getCheckpoint( key );
+		long after = resume != null ? Long.parseLong( resume ) : start - 1;
+		long end = start + config.maintenance_chunk_size;
+
+		while( true )
+		{
+			long started = System.nanoTime();
+			select.setLong( 1, after );
+			select.setLong( 2, end );
+			ResultSet rs = select.executeQuery();
+
+			int batched = 0, read = 0;
+
+			while( rs.next() )
+			{
+				read++;
+				after = rs.getLong( "id" );
+
+				if( bind( rs, update ) )
+				{
+					update.addBatch();
+					batched++;
+				}
+			}
+
+			rs.close();
+
+			if( read == 0 )
+				break;
+
+			if( batched > 0 )
+				update.executeBatch();
+
+			connection.commit();
+			pageTime.recordSince( started );
+			rows.addAndGet( batched );
+			rowsUpdated.add( batched );
+			saveCheckpoint( key, Long.toString( after ) );
+		}
+
+		saveCheckpoint( key, "done" );
+	}
+
+	private synchronized String getCheckpoint( String key )
+	{
+		return checkpoint.getProperty( key );
+	}
+
+	private synchronized void loadCheckpoint() throws IOException
+	{
+		if( !checkpointFile.exists() )
+			return;
+
+		InputStream in = new FileInputStream( checkpointFile );
+
+		try
+		{
+			checkpoint.load( in );
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	// Written alongside and renamed over, so a crash mid-write leaves the previous checkpoint
+	private synchronized void saveCheckpoint( String key, String value ) throws IOException
+	{
+		checkpoint.setProperty( key, value );
+
+		File tmp = new File( checkpointFile.getPath() + ".tmp" );
+		OutputStream out = new FileOutputStream( tmp );
+
+		try
+		{
+			checkpoint.store( out, name + " progress: chunk start = last id committed, or done" );
+		}
+		finally
+		{
+			out.close();
+		}
+
+		if( !tmp.renameTo( checkpointFile ) )
+		{
+			checkpointFile.delete();
+			if( !tmp.renameTo( checkpointFile ) )
+				throw new IOException( "Can't write checkpoint " + checkpointFile );
+		}
+	}
+
+	static void printSQLException( SQLException sqlex )
+	{
+		System.err.println("SQLException: " + sqlex.getMessage());
+		System.err.println("SQLState: " + sqlex.getSQLState());
+		System.err.println("VendorError: " + sqlex.getErrorCode());
+	}
+
+}
@@ -0,0 +1,370 @@
+/*
+ * Metrics
+ *
+ * Ryan Tenney 2007
+ *
+ * Counters and latency histograms for the fetch, parse, insert and
+ * maintenance paths, each registered as an MBean under "retrWeather:" in the
+ * platform MBean server so they can be read with jconsole or any JMX client
+ * while retrWeather runs. They can also be printed to stderr on a timer.
+ *
+ * Recording is a few atomic adds and no allocation, so it is always on.
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+public final class Metrics
+{
+	public interface CounterMBean
+	{
+		long getCount();
+	}
+
+	public static class Counter implements CounterMBean
+	{
+		private final AtomicLong count = new AtomicLong();
+
+		public void inc()
+		{
+			count.incrementAndGet();
+		}
+
+		public void add( long n )
+		{
+			count.addAndGet( n );
+		}
+
+		public long getCount()
+		{
+			return count.get();
+		}
+	}
+
+	public interface HistogramMBean
+	{
+		String getUnit();
+		long getCount();
+		double getMean();
+		long getMax();
+		long getP50();
+		long getP90();
+		long getP99();
+	}
+
+	// Counts values in buckets that double in width, each split into 2^subBits equal parts,
+	// so quantiles are exact to within 1 / 2^subBits of the value
+	public static class Histogram implements HistogramMBean
+	{
+		private final String unit;
+		private final int subBits;
+		private final AtomicLongArray buckets;
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		public Histogram( String unit, int subBits )
+		{
+			this.unit = unit;
+			this.subBits = subBits;
+			this.buckets = new AtomicLongArray( ( 65 - subBits ) << subBits );
+		}
+
+		public void record( long value )
+		{
+			if( value < 0 )
+				value = 0;
+
+			buckets.incrementAndGet( bucketOf( value ) );
+			count.incrementAndGet();
+			sum.addAndGet( value );
+
+			long m;
+			while( value > ( m = max.get() ) && !max.compareAndSet( m, value ) );
+		}
+
+		// Records the time since start, a System.nanoTime() reading, in micros
+		public void recordSince( long start )
+		{
+			record( ( System.nanoTime() - start ) / 1000 );
+		}
+
+		int bucketOf( long value )
+		{
+			int exponent = 63 - Long.numberOfLeadingZeros( value );
+			if( exponent < subBits )
+				return (int)value;
+
+			return ( ( exponent - subBits + 1 ) << subBits ) + (int)( ( value >>> ( exponent - subBits ) ) & ( ( 1 << subBits ) - 1 ) );
+		}
+
+		// Largest value that falls in the bucket
+		long upperBound( int bucket )
+		{
+			int range = bucket >>> subBits;
+			if( range == 0 )
+				return bucket;
+
+			int shift = range - 1;
+			long lower = ( (long)( ( 1 << subBits ) | ( bucket & ( ( 1 << subBits ) - 1 ) ) ) ) << shift;
+			return lower + ( 1L << shift ) - 1;
+		}
+
+		public String getUnit()
+		{
+			return unit;
+		}
+
+		public long getCount()
+		{
+			return count.get();
+		}
+
+		public double getMean()
+		{
+			long n = count.get();
+			return n > 0 ? (double)sum.get() / n : 0;
+		}
+
+		public long getMax()
+		{
+			return max.get();
+		}
+
+		public long getP50()
+		{
+			return quantile( 0.50 );
+		}
+
+		public long getP90()
+		{
+			return quantile( 0.90 );
+		}
+
+		public long getP99()
+		{
+			return quantile( 0.99 );
+		}
+
+		public long quantile( double q )
+		{
+			long n = 0;
+			for( int i = 0; i < buckets.length(); i++ )
+				n += buckets.get( i );
+
+			if( n == 0 )
+				return 0;
+
+			long rank = (long)Math.ceil( q * n ), seen = 0;
+			for( int i = 0; i < buckets.length(); i++ )
+			{
+				seen += buckets.get( i );
+				if( seen >= rank )
+					return Math.min( upperBound( i ), max.get() );
+			}
+
+			return max.get();
+		}
+
+		public String toString()
+		{
+			return String.format( "count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d %s", getCount(), getMean(), getP50(), getP90(), getP99(), getMax(), unit );
+		}
+	}
+
+	// Every instrument by name, in the order created
+	private static final Map< String, Object > registry = Collections.synchronizedMap( new LinkedHashMap< String, Object >() );
+
+	// Per-station fetch latency; coarser than the others since there are thousands
+	private static final ConcurrentMap< String, Histogram > stations = new ConcurrentHashMap< String, Histogram >();
+
+	// Fetching
+	public static final Histogram FETCH_LATENCY = histogram( "fetch_latency", "us" );
+	public static final Counter FETCH_BYTES = counter( "fetch_bytes" );
+
+	// Retries and hedged requests made, hedges that answered first, retries refused for want of budget,
+	// and stations a run left unfetched when its deadline passed
+	public static final Counter FETCH_RETRIES = counter( "fetch_retries" );
+	public static final Counter FETCH_HEDGES = counter( "fetch_hedges" );
+	public static final Counter FETCH_HEDGE_WINS = counter( "fetch_hedge_wins" );
+	public static final Counter FETCH_RETRY_BUDGET_EXHAUSTED = counter( "fetch_retry_budget_exhausted" );
+	public static final Counter STATIONS_PAST_DEADLINE = counter( "stations_past_deadline" );
+
+	// Documents written to the archive, their compressed bytes, and documents read back by replay
+	public static final Counter ARCHIVE_APPENDED = counter( "archive_appended" );
+	public static final Counter ARCHIVE_BYTES = counter( "archive_bytes" );
+	public static final Counter ARCHIVE_REPLAYED = counter( "archive_replayed" );
+
+	// Parsing a fetched observation, and its observation time
+	public static final Histogram PARSE_TIME = histogram( "parse_time", "us" );
+	public static final Histogram DATE_PARSE_TIME = histogram( "date_parse_time", "us" );
+
+	// Each executeBatch() of the inserts, and the rows it sent
+	public static final Histogram INSERT_BATCH_SIZE = histogram( "insert_batch_size", "rows" );
+	public static final Histogram INSERT_EXECUTE_LATENCY = histogram( "insert_execute_latency", "us" );
+
+	// Bulk loads that LOAD DATA LOCAL refused, and went row by row instead
+	public static final Counter BULK_FALLBACKS = counter( "bulk_fallbacks" );
+
+	// What became of each fetched observation
+	public static final Counter OBSERVATIONS_STORED = counter( "observations_stored" );
+	public static final Counter WATERMARK_HITS = counter( "watermark_hits" );
+	public static final Counter RECENT_HITS = counter( "recent_hits" );
+	// skipped by replay because its hash was found already stored
+	public static final Counter STORED_HITS = counter( "stored_hits" );
+	public static final Counter LAST_RECORD_LOOKUPS = counter( "last_record_lookups" );
+
+	public static final Counter STATIONS_LOADED = counter( "stations_loaded" );
+
+	// What station_sync found in the index, against the last sync
+	public static final Counter STATIONS_ADDED = counter( "stations_added" );
+	public static final Counter STATIONS_CHANGED = counter( "stations_changed" );
+	public static final Counter STATIONS_REMOVED = counter( "stations_removed" );
+	public static final Counter STATIONS_UNCHANGED = counter( "stations_unchanged" );
+
+	// Observations written to the spool, and read back from it to be stored again
+	public static final Counter SPOOL_APPENDED = counter( "spool_appended" );
+	public static final Counter SPOOL_REPLAYED = counter( "spool_replayed" );
+
+	// Errors by the stage they happened in
+	public static final Counter FETCH_ERRORS = counter( "errors_fetch" );
+	public static final Counter PARSE_ERRORS = counter( "errors_parse" );
+	public static final Counter STORE_ERRORS = counter( "errors_store" );
+	public static final Counter STATION_LIST_ERRORS = counter( "errors_station_list" );
+	public static final Counter MAINTENANCE_ERRORS = counter( "errors_maintenance" );
+
+	private static ScheduledExecutorService logger;
+
+	private Metrics()
+	{
+	}
+
+	public static Counter counter( String name )
+	{
+		synchronized( registry )
+		{
+			Counter counter = (Counter)registry.get( name );
+			if( counter == null )
+			{
+				counter = new Counter();
+				registry.put( name, counter );
+				register( "Counter", name, counter );
+			}
+			return counter;
+		}
+	}
+
+	public static Histogram histogram( String name, String unit )
+	{
+		synchronized( registry )
+		{
+			Histogram histogram = (Histogram)registry.get( name );
+			if( histogram == null )
+			{
+				histogram = new Histogram( unit, 3 );
+				registry.put( name, histogram );
+				register( "Histogram", name, histogram );
+			}
+			return histogram;
+		}
+	}
+
+	// Fetch latency of a single station, in micros
+	public static Histogram stationFetchLatency( String station_id )
+	{
+		Histogram histogram = stations.get( station_id );
+
+		if( histogram == null )
+		{
+			Histogram created = new Histogram( "us", 1 );
+			histogram = stations.putIfAbsent( station_id, created );
+			if( histogram == null )
+			{
+				histogram = created;
+				register( "StationFetchLatency", station_id, histogram );
+			}
+		}
+
+		return histogram;
+	}
+
+	private static void register( String type, String name, Object mbean )
+	{
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().registerMBean( mbean, new ObjectName( "retrWeather:type=" + type + ",name=" + ObjectName.quote( name ) ) );
+		}
+		catch( JMException jmex )
+		{
+			// still recorded, just not visible over JMX
+		}
+		catch( SecurityException sex )
+		{
+			// likewise
+		}
+	}
+
+	// Prints every instrument that has recorded something, and the slowest stations to fetch
+	public static void log( PrintStream out )
+	{
+		StringBuilder sb = new StringBuilder( "metrics:\n" );
+
+		synchronized( registry )
+		{
+			for( Map.Entry< String, Object > entry : registry.entrySet() )
+			{
+				Object instrument = entry.getValue();
+
+				if( instrument instanceof Counter && ( (Counter)instrument ).getCount() > 0 )
+					sb.append( "  " ).append( entry.getKey() ).append( " " ).append( ( (Counter)instrument ).getCount() ).append( '\n' );
+				else if( instrument instanceof Histogram && ( (Histogram)instrument ).getCount() > 0 )
+					sb.append( "  " ).append( entry.getKey() ).append( " " ).append( instrument ).append( '\n' );
+			}
+		}
+
+		List< Map.Entry< String, Histogram > > slowest = new ArrayList< Map.Entry< String, Histogram > >( stations.entrySet() );
+		Collections.sort( slowest, new Comparator< Map.Entry< String, Histogram > >() {
+			public int compare( Map.Entry< String, Histogram > a, Map.Entry< String, Histogram > b )
+			{
+				long pa = a.getValue().getP99(), pb = b.getValue().getP99();
+				return pa < pb ? 1 : pa > pb ? -1 : 0;
+			}
+		} );
+
+		for( int i = 0; i < Math.min( 5, slowest.size() ); i++ )
+			sb.append( "  fetch_latency[" ).append( slowest.get( i ).getKey() ).append( "] " ).append( slowest.get( i ).getValue() ).append( '\n' );
+
+		out.print( sb );
+	}
+
+	// Prints the metrics to stderr every period millis, until the process exits
+	public static synchronized void startLogging( long period )
+	{
+		if( logger != null || period <= 0 )
+			return;
+
+		logger = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+			public Thread newThread( Runnable r )
+			{
+				Thread t = new Thread( r, "Metrics logger" );
+				t.setDaemon( true );
+				return t;
+			}
+		} );
+
+		logger.scheduleAtFixedRate( new Runnable() {
+			public void run()
+			{
+				log( System.err );
+			}
+		}, period, period, TimeUnit.MILLISECONDS );
+	}
+
+}
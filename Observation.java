@@ -0,0 +1,280 @@
+/*
+ * Observation
+ *
+ * Ryan Tenney 2007
+ *
+ * One station's current observation as read by ObservationParser. Field
+ * values are kept as ranges of the fetched document and only turned into
+ * strings, with their entities decoded, when they are asked for as strings;
+ * numeric fields can be read straight from the document instead. The
+ * observation time is parsed while the document is read.
+ *
+ * As a Map it reads like the name/value pairs from parseXmlNameValuePairs,
+ * but can't be modified.
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.util.*;
+
+public class Observation extends AbstractMap< String, String >
+{
+	// Exact powers of ten for scaling parsed decimals
+	final static double[] POW10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18 };
+
+	private final CharSequence source;
+	private final String[] names;
+	private final int[] starts;
+	private final int[] ends;
+	private final boolean[] encoded;
+	private final int size;
+	private final long time;
+
+	// Values turned into strings so far
+	private final String[] values;
+
+	Observation( CharSequence source, String[] names, int[] starts, int[] ends, boolean[] encoded, int size, long time )
+	{
+		this.source = source;
+		this.names = names;
+		this.starts = starts;
+		this.ends = ends;
+		this.encoded = encoded;
+		this.size = size;
+		this.time = time;
+		this.values = new String[ size ];
+	}
+
+	// Observation time in epoch millis, or retrWeather.NOT_A_DATE if it was missing or unparseable
+	public long time()
+	{
+		return time;
+	}
+
+	public String station_id()
+	{
+		return get( "station_id" );
+	}
+
+	public float temp_c()
+	{
+		return getFloat( "temp_c" );
+	}
+
+	public float pressure_mb()
+	{
+		return getFloat( "pressure_mb" );
+	}
+
+	public float wind_mph()
+	{
+		return getFloat( "wind_mph" );
+	}
+
+	public int wind_degrees()
+	{
+		return getInt( "wind_degrees" );
+	}
+
+	// The field read as a decimal, or NaN if it is missing or not a number ("NA")
+	public float getFloat( String field )
+	{
+		int i = indexOf( field );
+		return i >= 0 ? parseFloat( source, starts[ i ], ends[ i ] ) : Float.NaN;
+	}
+
+	// The field read as an integer, or ObservationRing.NO_INT if it is missing or not one
+	public int getInt( String field )
+	{
+		int i = indexOf( field );
+		return i >= 0 ? parseInt( source, starts[ i ], ends[ i ] ) : ObservationRing.NO_INT;
+	}
+
+	public String get( Object key )
+	{
+		int i = key instanceof String ? indexOf( (String)key ) : -1;
+		return i >= 0 ? value( i ) : null;
+	}
+
+	public boolean containsKey( Object key )
+	{
+		return key instanceof String && indexOf( (String)key ) >= 0;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public Set< Map.Entry< String, String > > entrySet()
+	{
+		return new AbstractSet< Map.Entry< String, String > >() {
+			public int size()
+			{
+				return size;
+			}
+
+			public Iterator< Map.Entry< String, String > > iterator()
+			{
+				return new Iterator< Map.Entry< String, String > >() {
+					int i = 0;
+
+					public boolean hasNext()
+					{
+						return i < size;
+					}
+
+					public Map.Entry< String, String > next()
+					{
+						if( i >= size )
+							throw new NoSuchElementException();
+
+						Map.Entry< String, String > entry = new AbstractMap.SimpleImmutableEntry< String, String >( names[ i ], value( i ) );
+						i++;
+						return entry;
+					}
+
+					public void remove()
+					{
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	private String value( int i )
+	{
+		String value = values[ i ];
+
+		if( value == null )
+		{
+			if( encoded[ i ] )
+			{
+				StringBuilder sb = new StringBuilder( ends[ i ] - starts[ i ] );
+				retrWeather.unescapeChars( source, starts[ i ], ends[ i ], sb );
+				value = sb.toString();
+			}
+			else
+			{
+				value = source.subSequence( starts[ i ], ends[ i ] ).toString();
+			}
+
+			values[ i ] = value;
+		}
+
+		return value;
+	}
+
+	private int indexOf( String field )
+	{
+		// names are interned where known, so most lookups never get past ==
+		for( int i = 0; i < size; i++ )
+		{
+			if( names[ i ] == field )
+				return i;
+		}
+
+		for( int i = 0; i < size; i++ )
+		{
+			if( names[ i ].equals( field ) )
+				return i;
+		}
+
+		return -1;
+	}
+
+	// A plain decimal such as "-17.25" read without making a string; anything fancier goes through Float.parseFloat
+	static float parseFloat( CharSequence s, int from, int to )
+	{
+		while( from < to && s.charAt( from ) == ' ' )
+			from++;
+		while( to > from && s.charAt( to - 1 ) == ' ' )
+			to--;
+
+		if( from == to )
+			return Float.NaN;
+
+		int i = from;
+		boolean negative = false;
+
+		if( s.charAt( i ) == '-' || s.charAt( i ) == '+' )
+			negative = s.charAt( i++ ) == '-';
+
+		long mantissa = 0;
+		int digits = 0, scale = -1;
+
+		for( ; i < to; i++ )
+		{
+			char c = s.charAt( i );
+
+			if( c >= '0' && c <= '9' )
+			{
+				mantissa = mantissa * 10 + ( c - '0' );
+				if( ++digits > 18 )
+					break;
+				if( scale >= 0 )
+					scale++;
+			}
+			else if( c == '.' && scale < 0 )
+			{
+				scale = 0;
+			}
+			else
+			{
+				break;
+			}
+		}
+
+		if( i < to || digits == 0 )
+		{
+			// "NA" and the like; not worth an exception to find out
+			char c = s.charAt( from );
+			if( !( c >= '0' && c <= '9' ) && c != '-' && c != '+' && c != '.' )
+				return Float.NaN;
+
+			try
+			{
+				return Float.parseFloat( s.subSequence( from, to ).toString() );
+			}
+			catch( NumberFormatException nfex )
+			{
+				return Float.NaN;
+			}
+		}
+
+		double value = scale > 0 ? mantissa / POW10[ scale ] : mantissa;
+		return (float)( negative ? -value : value );
+	}
+
+	static int parseInt( CharSequence s, int from, int to )
+	{
+		while( from < to && s.charAt( from ) == ' ' )
+			from++;
+		while( to > from && s.charAt( to - 1 ) == ' ' )
+			to--;
+
+		int i = from;
+		boolean negative = false;
+
+		if( i < to && ( s.charAt( i ) == '-' || s.charAt( i ) == '+' ) )
+			negative = s.charAt( i++ ) == '-';
+
+		if( i == to || to - i > 9 )
+			return ObservationRing.NO_INT;
+
+		int value = 0;
+
+		for( ; i < to; i++ )
+		{
+			char c = s.charAt( i );
+			if( c < '0' || c > '9' )
+				return ObservationRing.NO_INT;
+			value = value * 10 + ( c - '0' );
+		}
+
+		return negative ? -value : value;
+	}
+
+}
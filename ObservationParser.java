@@ -0,0 +1,197 @@
+/*
+ * ObservationParser
+ *
+ * Ryan Tenney 2007
+ *
+ * Reads a current_observation document into an Observation in one pass,
+ * noting where each leaf element's text starts and ends rather than copying
+ * it out. An element whose text holds an entity is flagged so the entities
+ * are decoded when the value is asked for, and the observation time is
+ * parsed from the document as it goes by.
+ *
+ * Picks out the same elements as parseXmlNameValuePairs did with its
+ * regular expression: every non-empty <name>text</name> with no markup
+ * inside, the last one winning when a name repeats.
+ *
+ * released under gpl v2
+ *
+ */
+
+public class ObservationParser
+{
+	// Names of the fields NOAA sends, shared so a parse doesn't allocate them
+	final static String[] KNOWN = {
+		"credit", "credit_URL", "url", "title", "link", "suggested_pickup", "suggested_pickup_period",
+		"location", "station_id", "latitude", "longitude", "observation_time", "observation_time_rfc822",
+		"weather", "temperature_string", "temp_f", "temp_c", "relative_humidity", "wind_string", "wind_dir",
+		"wind_degrees", "wind_mph", "wind_gust_mph", "wind_kt", "wind_gust_kt", "pressure_string", "pressure_mb",
+		"pressure_in", "dewpoint_string", "dewpoint_f", "dewpoint_c", "heat_index_string", "heat_index_f",
+		"heat_index_c", "windchill_string", "windchill_f", "windchill_c", "visibility_mi", "icon_url_base",
+		"icon_url_name", "two_day_history_url", "ob_url", "disclaimer_url", "copyright_url", "privacy_policy_url"
+	};
+
+	private final String timeField;
+	private final boolean utc;
+
+	// timeField names the RFC 822 observation time, read as for parseRfc822Millis( ..., utc )
+	public ObservationParser( String timeField, boolean utc )
+	{
+		this.timeField = timeField;
+		this.utc = utc;
+	}
+
+	public Observation parse( CharSequence xml )
+	{
+		int capacity = 48;
+		String[] names = new String[ capacity ];
+		int[] starts = new int[ capacity ];
+		int[] ends = new int[ capacity ];
+		boolean[] encoded = new boolean[ capacity ];
+		int size = 0;
+		long time = retrWeather.NOT_A_DATE;
+
+		int n = xml.length();
+		int i = 0;
+
+		while( i < n )
+		{
+			if( xml.charAt( i ) != '<' )
+			{
+				i++;
+				continue;
+			}
+
+			// an opening tag with no attributes; anything else is passed over
+			int nameStart = i + 1, j = nameStart;
+			while( j < n && isNameChar( xml.charAt( j ) ) )
+				j++;
+
+			if( j == nameStart || j >= n || xml.charAt( j ) != '>' )
+			{
+				i++;
+				continue;
+			}
+
+			int start = j + 1, k = start;
+			boolean entity = false;
+
+			for( ; k < n; k++ )
+			{
+				char c = xml.charAt( k );
+				if( c == '<' )
+					break;
+				if( c == '&' )
+					entity = true;
+			}
+
+			int nameLength = j - nameStart;
+
+			// a leaf only if the text runs straight into its own closing tag; otherwise carry on from the child tag
+			if( k == start || !closes( xml, k, nameStart, nameLength ) )
+			{
+				i = k;
+				continue;
+			}
+
+			String name = name( xml, nameStart, nameLength );
+
+			int slot = 0;
+			while( slot < size && !names[ slot ].equals( name ) )
+				slot++;
+
+			if( slot == capacity )
+			{
+				capacity *= 2;
+				names = grow( names, capacity );
+				starts = grow( starts, capacity );
+				ends = grow( ends, capacity );
+				encoded = grow( encoded, capacity );
+			}
+
+			names[ slot ] = name;
+			starts[ slot ] = start;
+			ends[ slot ] = k;
+			encoded[ slot ] = entity;
+			if( slot == size )
+				size++;
+
+			if( name.equals( timeField ) )
+			{
+				if( entity )
+				{
+					StringBuilder sb = new StringBuilder( k - start );
+					retrWeather.unescapeChars( xml, start, k, sb );
+					time = retrWeather.parseRfc822Millis( sb, 0, sb.length(), utc );
+				}
+				else
+				{
+					time = retrWeather.parseRfc822Millis( xml, start, k, utc );
+				}
+			}
+
+			i = k + nameLength + 3;
+		}
+
+		return new Observation( xml, names, starts, ends, encoded, size, time );
+	}
+
+	// True if "</" + the name at nameStart + ">" is found at i
+	private static boolean closes( CharSequence xml, int i, int nameStart, int nameLength )
+	{
+		if( i + nameLength + 3 > xml.length() || xml.charAt( i + 1 ) != '/' || xml.charAt( i + nameLength + 2 ) != '>' )
+			return false;
+
+		for( int c = 0; c < nameLength; c++ )
+		{
+			if( xml.charAt( i + 2 + c ) != xml.charAt( nameStart + c ) )
+				return false;
+		}
+
+		return true;
+	}
+
+	private static String name( CharSequence xml, int start, int length )
+	{
+		for( String known : KNOWN )
+		{
+			if( known.length() != length )
+				continue;
+
+			int c = 0;
+			while( c < length && known.charAt( c ) == xml.charAt( start + c ) )
+				c++;
+
+			if( c == length )
+				return known;
+		}
+
+		return xml.subSequence( start, start + length ).toString();
+	}
+
+	private static boolean isNameChar( char c )
+	{
+		return ( c >= 'a' && c <= 'z' ) || ( c >= 'A' && c <= 'Z' ) || ( c >= '0' && c <= '9' ) || c == '_';
+	}
+
+	private static String[] grow( String[] a, int capacity )
+	{
+		String[] grown = new String[ capacity ];
+		System.arraycopy( a, 0, grown, 0, a.length );
+		return grown;
+	}
+
+	private static int[] grow( int[] a, int capacity )
+	{
+		int[] grown = new int[ capacity ];
+		System.arraycopy( a, 0, grown, 0, a.length );
+		return grown;
+	}
+
+	private static boolean[] grow( boolean[] a, int capacity )
+	{
+		boolean[] grown = new boolean[ capacity ];
+		System.arraycopy( a, 0, grown, 0, a.length );
+		return grown;
+	}
+
+}
@@ -0,0 +1,271 @@
+/*
+ * ObservationPipeline
+ *
+ * Ryan Tenney 2007
+ *
+ * Retrieves and stores a run of stations as four stages, fetch, parse, dedup
+ * and write, joined by bounded queues. A stage that falls behind fills the
+ * queue in front of it, which holds back the stages before it, so no more
+ * than a few queues' worth of stations is ever held however many are asked
+ * for.
+ *
+ * The writer stores what reaches it in groups, through storeObservations, as
+ * soon as commit_batch_size observations are waiting or the oldest of them
+ * has waited commit_interval. Each group is its own transaction: observations
+ * are in the database while the rest of the run is still being fetched, and a
+ * failed group costs only that group, which stays in the spool.
+ *
+ * With a run_deadline, stations not yet fetched when it passes are skipped,
+ * and what has been fetched by then is still stored.
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ObservationPipeline
+{
+	// One station on its way through the stages
+	static class Item
+	{
+		final String station_id;
+		String data;
+		Map< String, String > pairs;
+
+		Item( String station_id )
+		{
+			this.station_id = station_id;
+		}
+	}
+
+	// Put on a queue after the last item, once for each thread taking from it
+	final static Item END = new Item( null );
+
+	private final retrWeather r;
+	private final WeatherConfig config;
+	private final int fetchThreads;
+	private final int parseThreads;
+
+	private final BlockingQueue< Item > fetched;
+	private final BlockingQueue< Item > parsed;
+	private final BlockingQueue< Item > unique;
+
+	public ObservationPipeline( retrWeather r )
+	{
+		this.r = r;
+		this.config = r.config();
+		this.fetchThreads = Math.max( 1, config.fetch_threads );
+		this.parseThreads = Math.max( 1, Math.min( fetchThreads, Runtime.getRuntime().availableProcessors() ) );
+
+		this.fetched = new ArrayBlockingQueue< Item >( config.pipeline_queue_size );
+		this.parsed = new ArrayBlockingQueue< Item >( config.pipeline_queue_size );
+		this.unique = new ArrayBlockingQueue< Item >( config.pipeline_queue_size );
+	}
+
+	// Retrieves and stores the stations passed, returning once every group has been written
+	public void run( final String[] ids )
+	{
+		final long deadline = config.run_deadline > 0 ? System.currentTimeMillis() + config.run_deadline : Long.MAX_VALUE;
+		ExecutorService stages = Executors.newFixedThreadPool( fetchThreads + parseThreads + 1 );
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger skipped = new AtomicInteger();
+		final AtomicInteger fetching = new AtomicInteger( fetchThreads );
+		final AtomicInteger parsing = new AtomicInteger( parseThreads );
+
+		try
+		{
+			for( int i = 0; i < fetchThreads; i++ )
+			{
+				stages.execute( new Stage( fetching, fetched, parseThreads ) {
+					void work() throws InterruptedException
+					{
+						for( int n; ( n = next.getAndIncrement() ) < ids.length; )
+						{
+							if( System.currentTimeMillis() >= deadline )
+							{
+								skipped.incrementAndGet();
+								continue;
+							}
+
+							fetch( ids[ n ], deadline );
+						}
+					}
+				} );
+			}
+
+			for( int i = 0; i < parseThreads; i++ )
+			{
+				stages.execute( new Stage( parsing, parsed, 1 ) {
+					void work() throws InterruptedException
+					{
+						for( Item item; ( item = fetched.take() ) != END; )
+							parse( item );
+					}
+				} );
+			}
+
+			stages.execute( new Stage( new AtomicInteger( 1 ), unique, 1 ) {
+				void work() throws InterruptedException
+				{
+					dedup();
+				}
+			} );
+
+			write();
+		}
+		catch( InterruptedException iex )
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			stages.shutdownNow();
+		}
+
+		if( skipped.get() > 0 )
+		{
+			Metrics.STATIONS_PAST_DEADLINE.add( skipped.get() );
+			System.err.println( "Run deadline passed; " + skipped.get() + " stations not fetched" );
+		}
+	}
+
+	// A stage's threads; the last of them to finish ends the queue after it
+	abstract class Stage implements Runnable
+	{
+		private final AtomicInteger running;
+		private final BlockingQueue< Item > out;
+		private final int readers;
+
+		Stage( AtomicInteger running, BlockingQueue< Item > out, int readers )
+		{
+			this.running = running;
+			this.out = out;
+			this.readers = readers;
+		}
+
+		abstract void work() throws InterruptedException;
+
+		public void run()
+		{
+			try
+			{
+				work();
+			}
+			catch( RuntimeException rex )
+			{
+				rex.printStackTrace();
+			}
+			catch( InterruptedException iex )
+			{
+				// the run is being stopped
+				return;
+			}
+
+			try
+			{
+				if( running.decrementAndGet() == 0 )
+				{
+					for( int i = 0; i < readers; i++ )
+						out.put( END );
+				}
+			}
+			catch( InterruptedException iex )
+			{
+				// likewise
+			}
+		}
+	}
+
+	private void fetch( String id, long deadline ) throws InterruptedException
+	{
+		Item item = new Item( id );
+
+		try
+		{
+			item.data = r.fetchStationData( id, deadline );
+		}
+		catch( Exception ex )
+		{
+			System.err.println( "Error on Station ID: " + id );
+			ex.printStackTrace();
+			return;
+		}
+
+		fetched.put( item );
+	}
+
+	private void parse( Item item ) throws InterruptedException
+	{
+		try
+		{
+			item.pairs = r.parseObservation( item.data );
+			item.data = null;
+		}
+		catch( Exception ex )
+		{
+			Metrics.PARSE_ERRORS.inc();
+			System.err.println( "Error on Station ID: " + item.station_id );
+			ex.printStackTrace();
+			return;
+		}
+
+		parsed.put( item );
+	}
+
+	// Drops observations already stored, and any station that came up twice in the run
+	private void dedup() throws InterruptedException
+	{
+		Set< String > seen = new HashSet< String >();
+
+		for( Item item; ( item = parsed.take() ) != END; )
+		{
+			if( !seen.add( item.station_id ) )
+				continue;
+
+			// storeObservations reports an unparseable time
+			long time = r.observationTime( item.pairs );
+			if( time != retrWeather.NOT_A_DATE && !r.isUnstored( item.station_id, time ) )
+				continue;
+
+			unique.put( item );
+		}
+	}
+
+	// Group commits on size or age, on the calling thread
+	private void write() throws InterruptedException
+	{
+		Map< String, Map< String, String > > group = new LinkedHashMap< String, Map< String, String > >();
+		long deadline = 0;
+
+		while( true )
+		{
+			Item item;
+
+			if( group.isEmpty() )
+			{
+				item = unique.take();
+				deadline = System.currentTimeMillis() + config.commit_interval;
+			}
+			else
+			{
+				item = unique.poll( Math.max( 0, deadline - System.currentTimeMillis() ), TimeUnit.MILLISECONDS );
+			}
+
+			if( item != null && item != END )
+				group.put( item.station_id, item.pairs );
+
+			if( !group.isEmpty() && ( item == null || item == END || group.size() >= config.commit_batch_size ) )
+			{
+				r.storeObservations( group );
+				group = new LinkedHashMap< String, Map< String, String > >();
+			}
+
+			if( item == END )
+				return;
+		}
+	}
+
+}
@@ -0,0 +1,174 @@
+/*
+ * ObservationRing
+ *
+ * Ryan Tenney 2007
+ *
+ * The most recent observations of one station, kept in time order in
+ * primitive column arrays used as a ring: once full, each new observation
+ * replaces the oldest. A field that was missing or not a number is stored as
+ * NaN, or NO_INT for wind_degrees.
+ *
+ * released under gpl v2
+ *
+ */
+
+public class ObservationRing
+{
+	// Stored for an int field with no value
+	public final static int NO_INT = Integer.MIN_VALUE;
+
+	// A copy of the observations in a time range, oldest first, one array per column
+	public static class Window
+	{
+		public final int size;
+		public final long[] time;
+		public final float[] temp_c;
+		public final float[] pressure_mb;
+		public final float[] wind_mph;
+		public final int[] wind_degrees;
+
+		Window( int size )
+		{
+			this.size = size;
+			this.time = new long[ size ];
+			this.temp_c = new float[ size ];
+			this.pressure_mb = new float[ size ];
+			this.wind_mph = new float[ size ];
+			this.wind_degrees = new int[ size ];
+		}
+	}
+
+	private final long[] time;
+	private final float[] temp_c;
+	private final float[] pressure_mb;
+	private final float[] wind_mph;
+	private final int[] wind_degrees;
+
+	// Slot of the oldest observation, and the number held
+	private int head = 0;
+	private int size = 0;
+
+	public ObservationRing( int capacity )
+	{
+		capacity = Math.max( 1, capacity );
+
+		time = new long[ capacity ];
+		temp_c = new float[ capacity ];
+		pressure_mb = new float[ capacity ];
+		wind_mph = new float[ capacity ];
+		wind_degrees = new int[ capacity ];
+	}
+
+	// Adds an observation in time order, returning false if one at that time is already held or it is older than everything held in a full ring
+	public synchronized boolean add( long timeInMillis, float temp_c, float pressure_mb, float wind_mph, int wind_degrees )
+	{
+		int at = lowerBound( timeInMillis );
+
+		if( at < size && time[ slot( at ) ] == timeInMillis )
+			return false;
+
+		if( size == capacity() )
+		{
+			if( at == 0 )
+				return false;
+
+			// drop the oldest to make room
+			head = slot( 1 );
+			size--;
+			at--;
+		}
+
+		// shift anything newer up a slot; normally nothing, as observations arrive in order
+		for( int i = size; i > at; i-- )
+		{
+			int to = slot( i ), from = slot( i - 1 );
+			this.time[ to ] = this.time[ from ];
+			this.temp_c[ to ] = this.temp_c[ from ];
+			this.pressure_mb[ to ] = this.pressure_mb[ from ];
+			this.wind_mph[ to ] = this.wind_mph[ from ];
+			this.wind_degrees[ to ] = this.wind_degrees[ from ];
+		}
+
+		int s = slot( at );
+		this.time[ s ] = timeInMillis;
+		this.temp_c[ s ] = temp_c;
+		this.pressure_mb[ s ] = pressure_mb;
+		this.wind_mph[ s ] = wind_mph;
+		this.wind_degrees[ s ] = wind_degrees;
+		size++;
+
+		return true;
+	}
+
+	// Observations made at or after from and before to
+	public synchronized Window range( long from, long to )
+	{
+		int start = lowerBound( from );
+		int end = Math.max( start, lowerBound( to ) );
+
+		return copy( start, end );
+	}
+
+	// The newest n observations, or all of them if fewer are held
+	public synchronized Window latest( int n )
+	{
+		return copy( Math.max( 0, size - n ), size );
+	}
+
+	// Time of the newest observation, or Watermarks.NONE if none is held
+	public synchronized long latestTime()
+	{
+		return size > 0 ? time[ slot( size - 1 ) ] : Watermarks.NONE;
+	}
+
+	public synchronized int size()
+	{
+		return size;
+	}
+
+	public int capacity()
+	{
+		return time.length;
+	}
+
+	private Window copy( int start, int end )
+	{
+		Window w = new Window( end - start );
+
+		for( int i = start; i < end; i++ )
+		{
+			int s = slot( i ), j = i - start;
+			w.time[ j ] = time[ s ];
+			w.temp_c[ j ] = temp_c[ s ];
+			w.pressure_mb[ j ] = pressure_mb[ s ];
+			w.wind_mph[ j ] = wind_mph[ s ];
+			w.wind_degrees[ j ] = wind_degrees[ s ];
+		}
+
+		return w;
+	}
+
+	// Position, oldest first, of the first observation at or after t
+	private int lowerBound( long t )
+	{
+		int lo = 0, hi = size;
+
+		while( lo < hi )
+		{
+			int mid = ( lo + hi ) >>> 1;
+			if( time[ slot( mid ) ] < t )
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+
+		return lo;
+	}
+
+	private int slot( int i )
+	{
+		int s = head + i;
+		return s < time.length ? s : s - time.length;
+	}
+
+}
@@ -0,0 +1,419 @@
+/*
+ * ObservationSpool
+ *
+ * Ryan Tenney 2007
+ *
+ * Append-only local log of parsed observations. Every observation is
+ * written here, and forced to disk, before the transaction that inserts it
+ * commits, so one that fails to reach the database is not lost. The spool is
+ * kept as a series of segment files; a segment whose observations have all
+ * been committed is deleted once a newer one has taken over. A segment that
+ * holds observations that never got committed, or that was left behind by an
+ * earlier process, is replayed into the database in large batches the next
+ * time it can be reached.
+ *
+ * Each record is its length, a CRC32 of its body, then the body: station id,
+ * observation time and the observation's name/value pairs. Reading a segment
+ * stops at the first record that is short or fails its CRC, which is where a
+ * crash mid-write would have left it.
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+public class ObservationSpool
+{
+	// One spooled observation
+	public static class Record
+	{
+		public final String station_id;
+		public final long time;
+		public final Map< String, String > pairs;
+
+		public Record( String station_id, long time, Map< String, String > pairs )
+		{
+			this.station_id = station_id;
+			this.time = time;
+			this.pairs = pairs;
+		}
+	}
+
+	// Stores a batch of replayed records; throwing leaves the rest of the segment to be replayed later
+	public interface Replayer
+	{
+		void store( List< Record > records ) throws SQLException;
+	}
+
+	// A segment file, and the appends to it that have not yet been committed or failed
+	public static class Segment
+	{
+		final File file;
+		FileChannel channel;
+		long size;
+		int inflight = 0;
+		boolean needsReplay;
+
+		Segment( File file, boolean needsReplay )
+		{
+			this.file = file;
+			this.size = file.length();
+			this.needsReplay = needsReplay;
+		}
+
+		boolean isOpen()
+		{
+			return channel != null;
+		}
+	}
+
+	final static String PREFIX = "observed-";
+	final static String SUFFIX = ".spool";
+
+	// Largest record body read back; anything bigger is taken as a corrupt length
+	final static int MAX_RECORD = 16 * 1024 * 1024;
+
+	private final File directory;
+	private final long segmentSize;
+	private final boolean sync;
+	private final int replayBatchSize;
+
+	// Oldest first; the last one is the one appended to, if it is open
+	private final LinkedList< Segment > segments = new LinkedList< Segment >();
+	private long sequence = 0;
+
+	private final AtomicBoolean replaying = new AtomicBoolean( false );
+
+	// Segments already in the directory are from an earlier process and are all replayed
+	public ObservationSpool( File directory, long segmentSize, boolean sync, int replayBatchSize ) throws IOException
+	{
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.sync = sync;
+		this.replayBatchSize = Math.max( 1, replayBatchSize );
+
+		if( !directory.isDirectory() && !directory.mkdirs() )
+			throw new IOException( "Can't create spool directory " + directory );
+
+		File[] files = directory.listFiles( new FilenameFilter() {
+			public boolean accept( File dir, String name )
+			{
+				return name.startsWith( PREFIX ) && name.endsWith( SUFFIX );
+			}
+		} );
+
+		Arrays.sort( files );
+
+		for( File file : files )
+		{
+			segments.add( new Segment( file, true ) );
+			sequence = Math.max( sequence, sequenceOf( file ) );
+		}
+	}
+
+	// Writes the records and forces them to disk. The segment returned must be passed to done() once their transaction has committed or failed.
+	public synchronized Segment append( List< Record > records ) throws IOException
+	{
+		byte[] data = encode( records );
+		Segment segment = current();
+
+		ByteBuffer buf = ByteBuffer.wrap( data );
+		while( buf.hasRemaining() )
+			segment.channel.write( buf );
+
+		if( sync )
+			segment.channel.force( false );
+
+		segment.size += data.length;
+		segment.inflight++;
+
+		Metrics.SPOOL_APPENDED.add( records.size() );
+
+		return segment;
+	}
+
+	// Records the outcome of the transaction for an append
+	public synchronized void done( Segment segment, boolean committed )
+	{
+		segment.inflight--;
+
+		if( !committed )
+			segment.needsReplay = true;
+
+		deleteIfFinished( segment );
+	}
+
+	// True if there are observations that may not have reached the database
+	public synchronized boolean hasBacklog()
+	{
+		for( Segment segment : segments )
+		{
+			if( segment.needsReplay )
+				return true;
+		}
+
+		return false;
+	}
+
+	// Replays every finished segment that needs it, oldest first, stopping at the first batch the replayer fails to store.
+	// Returns the number of records handed to the replayer, or 0 if another thread is already replaying.
+	public int replay( Replayer replayer ) throws SQLException, IOException
+	{
+		if( !replaying.compareAndSet( false, true ) )
+			return 0;
+
+		int replayed = 0;
+
+		try
+		{
+			Segment segment;
+
+			while( ( segment = nextToReplay() ) != null )
+			{
+				replayed += replay( segment, replayer );
+
+				synchronized( this )
+				{
+					segment.needsReplay = false;
+					deleteIfFinished( segment );
+				}
+			}
+		}
+		finally
+		{
+			replaying.set( false );
+		}
+
+		return replayed;
+	}
+
+	private int replay( Segment segment, Replayer replayer ) throws SQLException, IOException
+	{
+		DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( segment.file ), 64 * 1024 ) );
+		List< Record > batch = new ArrayList< Record >( replayBatchSize );
+		int replayed = 0;
+
+		try
+		{
+			List< Record > records;
+
+			while( ( records = readRecord( in, segment ) ) != null )
+			{
+				batch.addAll( records );
+
+				if( batch.size() >= replayBatchSize )
+				{
+					replayer.store( batch );
+					replayed += batch.size();
+					batch.clear();
+				}
+			}
+
+			if( !batch.isEmpty() )
+			{
+				replayer.store( batch );
+				replayed += batch.size();
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+
+		Metrics.SPOOL_REPLAYED.add( replayed );
+		return replayed;
+	}
+
+	// Oldest segment needing replay that nothing is still being appended to; the open segment is closed off first if it needs replay
+	private synchronized Segment nextToReplay()
+	{
+		for( Segment segment : segments )
+		{
+			if( !segment.needsReplay || segment.inflight > 0 )
+				continue;
+
+			if( segment.isOpen() )
+				close( segment );
+
+			return segment;
+		}
+
+		return null;
+	}
+
+	// The open segment, rolling over to a new one once it has reached the segment size
+	private Segment current() throws IOException
+	{
+		Segment last = segments.isEmpty() ? null : segments.getLast();
+
+		if( last != null && last.isOpen() && last.size < segmentSize )
+			return last;
+
+		if( last != null && last.isOpen() )
+		{
+			close( last );
+			deleteIfFinished( last );
+		}
+
+		File file = new File( directory, PREFIX + String.format( "%016d", ++sequence ) + SUFFIX );
+		Segment segment = new Segment( file, false );
+		segment.channel = new FileOutputStream( file, true ).getChannel();
+		segments.add( segment );
+
+		return segment;
+	}
+
+	private void close( Segment segment )
+	{
+		try
+		{
+			segment.channel.close();
+		}
+		catch( IOException ioex )
+		{
+			ioex.printStackTrace();
+		}
+
+		segment.channel = null;
+	}
+
+	// A closed segment with nothing in flight and nothing to replay only holds committed observations
+	private void deleteIfFinished( Segment segment )
+	{
+		if( segment.isOpen() || segment.inflight > 0 || segment.needsReplay )
+			return;
+
+		if( segment.file.delete() || !segment.file.exists() )
+			segments.remove( segment );
+	}
+
+	// One appended group of records, or null at the end of the segment or at a torn or corrupt record
+	static List< Record > readRecord( DataInputStream in, Segment segment ) throws IOException
+	{
+		int length, crc;
+
+		try
+		{
+			length = in.readInt();
+			crc = in.readInt();
+		}
+		catch( EOFException eofex )
+		{
+			return null;
+		}
+
+		if( length < 0 || length > MAX_RECORD )
+		{
+			System.err.println( "Spool segment " + segment.file + " is corrupt, replaying no further" );
+			return null;
+		}
+
+		byte[] body = new byte[ length ];
+
+		try
+		{
+			in.readFully( body );
+		}
+		catch( EOFException eofex )
+		{
+			System.err.println( "Spool segment " + segment.file + " ends in a partly written record" );
+			return null;
+		}
+
+		CRC32 check = new CRC32();
+		check.update( body, 0, length );
+
+		if( (int)check.getValue() != crc )
+		{
+			System.err.println( "Spool segment " + segment.file + " has a bad checksum, replaying no further" );
+			return null;
+		}
+
+		return decode( body );
+	}
+
+	// One framed record holding every observation of an append, so a torn write loses the append and nothing before it
+	static byte[] encode( List< Record > records ) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream( 256 + records.size() * 1024 );
+		DataOutputStream out = new DataOutputStream( bytes );
+
+		out.writeInt( 0 );
+		out.writeInt( 0 );
+		out.writeInt( records.size() );
+
+		for( Record record : records )
+		{
+			out.writeUTF( record.station_id );
+			out.writeLong( record.time );
+			out.writeInt( record.pairs.size() );
+
+			for( Map.Entry< String, String > pair : record.pairs.entrySet() )
+			{
+				out.writeUTF( pair.getKey() );
+				out.writeBoolean( pair.getValue() != null );
+				if( pair.getValue() != null )
+					out.writeUTF( pair.getValue() );
+			}
+		}
+
+		out.flush();
+		byte[] data = bytes.toByteArray();
+
+		CRC32 crc = new CRC32();
+		crc.update( data, 8, data.length - 8 );
+
+		ByteBuffer header = ByteBuffer.wrap( data, 0, 8 );
+		header.putInt( data.length - 8 );
+		header.putInt( (int)crc.getValue() );
+
+		return data;
+	}
+
+	static List< Record > decode( byte[] body ) throws IOException
+	{
+		DataInputStream in = new DataInputStream( new ByteArrayInputStream( body ) );
+		int count = in.readInt();
+		List< Record > records = new ArrayList< Record >( count );
+
+		for( int i = 0; i < count; i++ )
+		{
+			String station_id = in.readUTF();
+			long time = in.readLong();
+			int n = in.readInt();
+			Map< String, String > pairs = new HashMap< String, String >( n * 2 );
+
+			for( int j = 0; j < n; j++ )
+			{
+				String key = in.readUTF();
+				pairs.put( key, in.readBoolean() ? in.readUTF() : null );
+			}
+
+			records.add( new Record( station_id, time, pairs ) );
+		}
+
+		return records;
+	}
+
+	static long sequenceOf( File file )
+	{
+		String name = file.getName();
+
+		try
+		{
+			return Long.parseLong( name.substring( PREFIX.length(), name.length() - SUFFIX.length() ) );
+		}
+		catch( NumberFormatException nfex )
+		{
+			return 0;
+		}
+	}
+
+}
@@ -0,0 +1,113 @@
+/*
+ * ObservationStore
+ *
+ * Ryan Tenney 2007
+ *
+ * Recent observations of every station, each station in an ObservationRing,
+ * so that recent windows can be read without going to the database
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ObservationStore
+{
+	// Returned for a station with nothing held
+	private static final ObservationRing.Window EMPTY = new ObservationRing( 1 ).latest( 0 );
+
+	private final ConcurrentMap< String, ObservationRing > rings = new ConcurrentHashMap< String, ObservationRing >();
+	private final int capacity;
+
+	// capacity is the number of observations kept per station
+	public ObservationStore( int capacity )
+	{
+		this.capacity = capacity;
+	}
+
+	// Adds a parsed observation, made at timeInMillis, to its station's ring
+	public boolean add( String station_id, long timeInMillis, Map< String, String > pairs )
+	{
+		// read straight from the fetched document when there is one
+		if( pairs instanceof Observation )
+		{
+			Observation o = (Observation)pairs;
+			return ring( station_id ).add( timeInMillis, o.temp_c(), o.pressure_mb(), o.wind_mph(), o.wind_degrees() );
+		}
+
+		return ring( station_id ).add( timeInMillis,
+									   toFloat( pairs.get( "temp_c" ) ),
+									   toFloat( pairs.get( "pressure_mb" ) ),
+									   toFloat( pairs.get( "wind_mph" ) ),
+									   toInt( pairs.get( "wind_degrees" ) ) );
+	}
+
+	// The station's observations made at or after from and before to, oldest first; empty for an unknown station
+	public ObservationRing.Window range( String station_id, long from, long to )
+	{
+		ObservationRing ring = rings.get( station_id );
+		return ring != null ? ring.range( from, to ) : EMPTY;
+	}
+
+	// The station's newest n observations
+	public ObservationRing.Window latest( String station_id, int n )
+	{
+		ObservationRing ring = rings.get( station_id );
+		return ring != null ? ring.latest( n ) : EMPTY;
+	}
+
+	// The station's ring, created empty if it has none yet
+	public ObservationRing ring( String station_id )
+	{
+		ObservationRing ring = rings.get( station_id );
+
+		if( ring == null )
+		{
+			ObservationRing created = new ObservationRing( capacity );
+			ring = rings.putIfAbsent( station_id, created );
+			if( ring == null )
+				ring = created;
+		}
+
+		return ring;
+	}
+
+	public Set< String > stations()
+	{
+		return Collections.unmodifiableSet( rings.keySet() );
+	}
+
+	static float toFloat( String value )
+	{
+		if( value == null )
+			return Float.NaN;
+
+		try
+		{
+			return Float.parseFloat( value.trim() );
+		}
+		catch( NumberFormatException nfex )
+		{
+			// "NA" and the like
+			return Float.NaN;
+		}
+	}
+
+	static int toInt( String value )
+	{
+		if( value == null )
+			return ObservationRing.NO_INT;
+
+		try
+		{
+			return Integer.parseInt( value.trim() );
+		}
+		catch( NumberFormatException nfex )
+		{
+			return ObservationRing.NO_INT;
+		}
+	}
+
+}
@@ -0,0 +1,183 @@
+/*
+ * PollingDaemon
+ *
+ * Ryan Tenney 2007
+ *
+ * Keeps retrWeather resident, polling each station on its own timer. A
+ * station's next poll is set from the interval measured between its
+ * successive observations, so stations are not fetched before they can
+ * have anything new.
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class PollingDaemon
+{
+	// What has been learned about one station's reporting cadence
+	static class Cadence
+	{
+		long last = Watermarks.NONE;	// newest observation seen, epoch millis
+		long interval;					// estimated millis between observations
+		int misses = 0;					// polls since the last new observation
+
+		Cadence( long interval )
+		{
+			this.interval = interval;
+		}
+
+		// Records a polled observation time, returning true if it is new
+		boolean observed( long timeInMillis, long min, long max )
+		{
+			if( timeInMillis <= last )
+			{
+				misses++;
+				return false;
+			}
+
+			if( last != Watermarks.NONE )
+			{
+				// weighted towards the current estimate, so one skipped report doesn't double it
+				long estimate = ( interval * 3 + ( timeInMillis - last ) ) / 4;
+				interval = Math.max( min, Math.min( max, estimate ) );
+			}
+
+			last = timeInMillis;
+			misses = 0;
+			return true;
+		}
+	}
+
+	private final retrWeather r;
+	private final WeatherConfig config;
+	private final ScheduledThreadPoolExecutor scheduler;
+	private final Map< String, Cadence > cadences = new ConcurrentHashMap< String, Cadence >();
+	private final Random random = new Random();
+
+	public PollingDaemon( retrWeather r, WeatherConfig config )
+	{
+		this.r = r;
+		this.config = config;
+		this.scheduler = new ScheduledThreadPoolExecutor( Math.max( 1, config.fetch_threads ) );
+		this.scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy( false );
+	}
+
+	// Schedules the first poll of each station, spread over the retry interval so they don't all go at once
+	public void start( String[] ids )
+	{
+		for( String id : ids )
+		{
+			if( cadences.containsKey( id ) )
+				continue;
+
+			cadences.put( id, new Cadence( config.daemon_default_interval ) );
+			schedule( id, (long)( random.nextDouble() * config.daemon_retry_interval ) );
+		}
+	}
+
+	public void stop()
+	{
+		scheduler.shutdown();
+	}
+
+	public void awaitTermination()
+	{
+		try
+		{
+			while( !scheduler.awaitTermination( 1, TimeUnit.DAYS ) );
+		}
+		catch( InterruptedException iex )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Estimated interval between a station's observations in millis, or -1 for an unknown station
+	public long getInterval( String station_id )
+	{
+		Cadence cadence = cadences.get( station_id );
+		return cadence != null ? cadence.interval : -1;
+	}
+
+	private void schedule( final String id, long delay )
+	{
+		try
+		{
+			scheduler.schedule( new Runnable() {
+				public void run()
+				{
+					poll( id );
+				}
+			}, delay, TimeUnit.MILLISECONDS );
+		}
+		catch( RejectedExecutionException reex )
+		{
+			// shutting down
+		}
+	}
+
+	// Fetches one station, stores it if it is new and schedules its next poll.
+	// Only one poll per station is ever scheduled, so its Cadence is never used by two threads at once.
+	void poll( String id )
+	{
+		Cadence cadence = cadences.get( id );
+		long delay;
+
+		// owned by another worker for now; check again later in case it moves here
+		if( !r.ownsStation( id ) )
+		{
+			schedule( id, config.daemon_retry_interval );
+			return;
+		}
+
+		try
+		{
+			Observation observation = r.fetchObservation( id );
+			long t = observation.time();
+
+			if( t == retrWeather.NOT_A_DATE )
+				throw new IllegalArgumentException( "Unparseable " + config.rfc822_date_string + ": " + observation.get( config.rfc822_date_string ) );
+
+			if( cadence.observed( t, config.daemon_min_interval, config.daemon_max_interval ) )
+				r.storeObservations( Collections.singletonMap( id, observation ) );
+
+			delay = nextDelay( cadence, System.currentTimeMillis() );
+		}
+		catch( Exception ex )
+		{
+			System.err.println( "Error on Station ID: " + id );
+			ex.printStackTrace();
+
+			cadence.misses++;
+			delay = retryDelay( cadence );
+		}
+
+		schedule( id, delay );
+	}
+
+	// Waits until the next observation should have been published, or backs off if it is already overdue
+	long nextDelay( Cadence cadence, long now )
+	{
+		if( cadence.misses == 0 && cadence.last != Watermarks.NONE )
+		{
+			long due = cadence.last + cadence.interval + config.daemon_publish_delay;
+			if( due > now )
+				return due - now;
+		}
+
+		return retryDelay( cadence );
+	}
+
+	// Doubles with each poll that found nothing new, up to the station's interval, with some jitter
+	long retryDelay( Cadence cadence )
+	{
+		long delay = config.daemon_retry_interval << Math.min( Math.max( 0, cadence.misses - 1 ), 8 );
+		delay = Math.min( delay, Math.max( config.daemon_retry_interval, cadence.interval ) );
+
+		return delay + (long)( random.nextDouble() * config.daemon_retry_interval / 10 );
+	}
+
+}
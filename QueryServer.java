@@ -0,0 +1,293 @@
+/*
+ * QueryServer
+ *
+ * Ryan Tenney 2007
+ *
+ * Serves the latest observation of each station over HTTP from inside the
+ * daemon, so dashboards don't have to query `weather`.`observed`:
+ *
+ *   GET /latest/KORD                 one <current_observation>
+ *   GET /latest?stations=KORD,KMDW   an <observations> element holding one per known station
+ *
+ * Answers come from LatestObservations, which storeObservations keeps up to
+ * date. A station that isn't held, as after a restart, is read from the
+ * database once and held from then on. A station the database has nothing
+ * for is remembered as missing for query_miss_ttl, so asking for unknown ids
+ * again and again doesn't cost a query each, and a request may name at most
+ * query_max_stations.
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.io.*;
+import java.net.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.sun.net.httpserver.*;
+
+public class QueryServer
+{
+	final static byte[] PROLOG = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n".getBytes( LatestObservations.UTF8 );
+	final static byte[] OPEN = "<observations>\n".getBytes( LatestObservations.UTF8 );
+	final static byte[] CLOSE = "</observations>\n".getBytes( LatestObservations.UTF8 );
+
+	// Stations remembered as missing, beyond which the oldest are forgotten
+	final static int MAX_MISSES = 10000;
+
+	private final retrWeather r;
+	private final WeatherConfig config;
+	private final LatestObservations latest;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final String[] fields;
+	private final String select;
+
+	// When each station the database had nothing for may be looked up again
+	private final Map< String, Long > misses = Collections.synchronizedMap( new LinkedHashMap< String, Long >() {
+		protected boolean removeEldestEntry( Map.Entry< String, Long > eldest )
+		{
+			return size() > MAX_MISSES;
+		}
+	} );
+
+	public QueryServer( retrWeather r, LatestObservations latest ) throws IOException
+	{
+		this.r = r;
+		this.config = r.config();
+		this.latest = latest;
+
+		this.server = HttpServer.create( new InetSocketAddress( config.query_port ), 64 );
+		this.executor = Executors.newFixedThreadPool( Math.max( 1, config.query_threads ) );
+		this.fields = queryFields( config );
+		this.select = selectLatest( config );
+
+		server.setExecutor( executor );
+		server.createContext( "/latest", new HttpHandler() {
+			public void handle( HttpExchange exchange ) throws IOException
+			{
+				try
+				{
+					serve( exchange );
+				}
+				finally
+				{
+					exchange.close();
+				}
+			}
+		} );
+	}
+
+	public void start()
+	{
+		server.start();
+	}
+
+	public void stop()
+	{
+		server.stop( 1 );
+		executor.shutdownNow();
+	}
+
+	private void serve( HttpExchange exchange ) throws IOException
+	{
+		if( !"GET".equals( exchange.getRequestMethod() ) && !"HEAD".equals( exchange.getRequestMethod() ) )
+		{
+			exchange.sendResponseHeaders( 405, -1 );
+			return;
+		}
+
+		String path = exchange.getRequestURI().getPath();
+		String[] ids;
+		boolean single;
+
+		if( path.startsWith( "/latest/" ) && path.length() > "/latest/".length() )
+		{
+			ids = new String[] { path.substring( "/latest/".length() ) };
+			single = true;
+		}
+		else
+		{
+			String stations = parameter( exchange.getRequestURI().getRawQuery(), "stations" );
+			if( stations == null )
+			{
+				exchange.sendResponseHeaders( 400, -1 );
+				return;
+			}
+
+			ids = retrWeather.splitTrimCsv( stations );
+			single = false;
+
+			if( ids.length > config.query_max_stations )
+			{
+				exchange.sendResponseHeaders( 413, -1 );
+				return;
+			}
+		}
+
+		List< byte[] > bodies = new ArrayList< byte[] >( ids.length );
+		int length = 0;
+
+		for( String id : ids )
+		{
+			LatestObservations.Entry entry = lookup( id.toUpperCase() );
+			if( entry != null )
+			{
+				bodies.add( entry.body );
+				length += entry.body.length;
+			}
+		}
+
+		if( single && bodies.isEmpty() )
+		{
+			exchange.sendResponseHeaders( 404, -1 );
+			return;
+		}
+
+		length += PROLOG.length + ( single ? 0 : OPEN.length + CLOSE.length );
+
+		exchange.getResponseHeaders().set( "Content-Type", "text/xml; charset=UTF-8" );
+		exchange.sendResponseHeaders( 200, "HEAD".equals( exchange.getRequestMethod() ) ? -1 : length );
+
+		if( "HEAD".equals( exchange.getRequestMethod() ) )
+			return;
+
+		OutputStream out = exchange.getResponseBody();
+		out.write( PROLOG );
+		if( !single )
+			out.write( OPEN );
+		for( byte[] body : bodies )
+			out.write( body );
+		if( !single )
+			out.write( CLOSE );
+		out.flush();
+	}
+
+	// From the cache, or else the database; null for a station with no observations
+	private LatestObservations.Entry lookup( String id )
+	{
+		LatestObservations.Entry entry = latest.get( id );
+		if( entry != null )
+			return entry;
+
+		Long retry = misses.get( id );
+		if( retry != null && retry.longValue() > System.currentTimeMillis() )
+			return null;
+
+		Connection connection = null;
+
+		try
+		{
+			connection = r.borrowConnection();
+			PreparedStatement ps = connection.prepareStatement( select );
+
+			try
+			{
+				ps.setString( 1, id );
+				ResultSet rs = ps.executeQuery();
+
+				if( !rs.next() )
+				{
+					if( config.query_miss_ttl > 0 )
+						misses.put( id, System.currentTimeMillis() + config.query_miss_ttl );
+					return null;
+				}
+
+				misses.remove( id );
+
+				Map< String, String > pairs = new HashMap< String, String >();
+				for( String field : fields )
+				{
+					String value = rs.getString( field );
+					if( value != null )
+						pairs.put( field, value );
+				}
+
+				// the time columns made as storeObservations makes them, so the entry matches one put at ingest
+				long t = rs.getLong( "observation_time_posix" );
+				if( rs.wasNull() )
+					latest.put( id, 0, pairs );
+				else
+					latest.put( id, t, r.observationRow( pairs, t ) );
+			}
+			finally
+			{
+				ps.close();
+			}
+		}
+		catch( SQLException sqlex )
+		{
+			System.err.println("SQLException: " + sqlex.getMessage());
+			System.err.println("SQLState: " + sqlex.getSQLState());
+			System.err.println("VendorError: " + sqlex.getErrorCode());
+			r.invalidateConnection( connection );
+			connection = null;
+			return null;
+		}
+		finally
+		{
+			r.releaseConnection( connection );
+		}
+
+		return latest.get( id );
+	}
+
+	// Fields served: the stored columns, less the row id and the binary hash
+	static String[] queryFields( WeatherConfig config )
+	{
+		List< String > fields = new ArrayList< String >();
+
+		for( String column : config.database_columns )
+		{
+			if( !column.equals( "id" ) && !column.equals( "hash" ) )
+				fields.add( column );
+		}
+
+		return fields.toArray( new String[ fields.size() ] );
+	}
+
+	static String selectLatest( WeatherConfig config )
+	{
+		String q = config.sqlFieldQuoteChar;
+		StringBuilder sql = new StringBuilder( "SELECT " );
+		String[] fields = queryFields( config );
+
+		for( int i = 0; i < fields.length; i++ )
+		{
+			if( i > 0 )
+				sql.append( ", " );
+			sql.append( q ).append( fields[ i ] ).append( q );
+		}
+
+		sql.append( " FROM `weather`.`observed` WHERE `station_id` = ? ORDER BY `observation_time_posix` DESC LIMIT 1;" );
+
+		return sql.toString();
+	}
+
+	static String parameter( String query, String name )
+	{
+		if( query == null )
+			return null;
+
+		for( String param : query.split( "&" ) )
+		{
+			int eq = param.indexOf( '=' );
+			if( eq > 0 && param.substring( 0, eq ).equals( name ) )
+			{
+				try
+				{
+					return URLDecoder.decode( param.substring( eq + 1 ), "UTF-8" );
+				}
+				catch( UnsupportedEncodingException ueex )
+				{
+					return null;
+				}
+			}
+		}
+
+		return null;
+	}
+
+}
@@ -0,0 +1,78 @@
+/*
+ * RecentObservations
+ *
+ * Ryan Tenney 2007
+ *
+ * Bounded set of the (station, observation time) pairs most recently
+ * stored, so an observation that is fetched again can be dropped before it
+ * reaches SQL. Once full, the pair stored longest ago is forgotten.
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.util.*;
+
+public class RecentObservations
+{
+	static class Key
+	{
+		final String station_id;
+		final long time;
+
+		Key( String station_id, long time )
+		{
+			this.station_id = station_id;
+			this.time = time;
+		}
+
+		public int hashCode()
+		{
+			return station_id.hashCode() * 31 + (int)( time ^ ( time >>> 32 ) );
+		}
+
+		public boolean equals( Object o )
+		{
+			if( !( o instanceof Key ) )
+				return false;
+
+			Key k = (Key)o;
+			return time == k.time && station_id.equals( k.station_id );
+		}
+	}
+
+	private final Map< Key, Boolean > seen;
+
+	public RecentObservations( final int capacity )
+	{
+		seen = new LinkedHashMap< Key, Boolean >( Math.min( capacity, 1 << 16 ), 0.75f, false ) {
+			protected boolean removeEldestEntry( Map.Entry< Key, Boolean > eldest )
+			{
+				return size() > capacity;
+			}
+		};
+	}
+
+	public synchronized boolean contains( String station_id, long timeInMillis )
+	{
+		return seen.containsKey( new Key( station_id, timeInMillis ) );
+	}
+
+	// Remembers a stored observation; returns false if it was already known
+	public synchronized boolean add( String station_id, long timeInMillis )
+	{
+		return seen.put( new Key( station_id, timeInMillis ), Boolean.TRUE ) == null;
+	}
+
+	public synchronized void addAll( Map< String, Long > stored )
+	{
+		for( Map.Entry< String, Long > entry : stored.entrySet() )
+			seen.put( new Key( entry.getKey(), entry.getValue().longValue() ), Boolean.TRUE );
+	}
+
+	public synchronized int size()
+	{
+		return seen.size();
+	}
+
+}
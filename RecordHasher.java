@@ -0,0 +1,119 @@
+/*
+ * RecordHasher
+ *
+ * Ryan Tenney 2007
+ *
+ * Hashes a record's station id and observation time. The digest is the same
+ * MD5 as before, so new hashes match those already stored in `hash`, but the
+ * MessageDigest and input buffer are kept per thread and the result can be
+ * written into a caller's buffer.
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class RecordHasher
+{
+	// Bytes in a hash
+	public final static int LENGTH = 16;
+
+	final static char[] HEX = new char[] { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+
+	private final static ThreadLocal< MessageDigest > digests = new ThreadLocal< MessageDigest >() {
+		protected MessageDigest initialValue()
+		{
+			try
+			{
+				return MessageDigest.getInstance( "MD5" );
+			}
+			catch( NoSuchAlgorithmException nsaex )
+			{
+				throw new IllegalStateException( "MD5 not available" );
+			}
+		}
+	};
+
+	// Station id bytes followed by the time bytes; long enough for any station id
+	private final static ThreadLocal< byte[] > inputs = new ThreadLocal< byte[] >() {
+		protected byte[] initialValue()
+		{
+			return new byte[ 64 ];
+		}
+	};
+
+	public static byte[] hash( String station_id, long timeInMillis )
+	{
+		byte[] out = new byte[ LENGTH ];
+		hash( station_id, timeInMillis, out, 0 );
+		return out;
+	}
+
+	// Writes the hash into out at offset
+	public static void hash( String station_id, long timeInMillis, byte[] out, int offset )
+	{
+		MessageDigest dig = digests.get();
+		byte[] in = inputs.get();
+		int n = station_id.length();
+
+		if( n + 7 > in.length || !isAscii( station_id ) )
+		{
+			// same bytes as the original hashRecord used
+			dig.update( station_id.getBytes() );
+			n = 0;
+		}
+		else
+		{
+			for( int i = 0; i < n; i++ )
+				in[ i ] = (byte)station_id.charAt( i );
+		}
+
+		// only the low 7 bytes of the time, as always
+		for( int i = 0; i < 7; i++ )
+			in[ n++ ] = (byte)( ( timeInMillis >> ( i * 8 ) ) & 0xFF );
+
+		dig.update( in, 0, n );
+
+		try
+		{
+			dig.digest( out, offset, LENGTH );
+		}
+		catch( DigestException dex )
+		{
+			dig.reset();
+			throw new IllegalArgumentException( "No room for a hash at offset " + offset );
+		}
+	}
+
+	public static String toHex( byte[] data )
+	{
+		char[] out = new char[ data.length * 2 ];
+		toHex( data, 0, data.length, out, 0 );
+		return new String( out );
+	}
+
+	// Writes len bytes of data as upper case hex into out at outOffset
+	public static void toHex( byte[] data, int offset, int len, char[] out, int outOffset )
+	{
+		for( int i = 0; i < len; i++ )
+		{
+			byte b = data[ offset + i ];
+			out[ outOffset++ ] = HEX[ ( b & 0xF0 ) >> 4 ];
+			out[ outOffset++ ] = HEX[ b & 0x0F ];
+		}
+	}
+
+	private static boolean isAscii( String str )
+	{
+		for( int i = 0; i < str.length(); i++ )
+		{
+			if( str.charAt( i ) > 0x7F )
+				return false;
+		}
+		return true;
+	}
+
+}
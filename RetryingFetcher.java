@@ -0,0 +1,217 @@
+/*
+ * RetryingFetcher
+ *
+ * Ryan Tenney 2007
+ *
+ * Fetches through HttpFetcher, retrying failed requests after a jittered,
+ * exponentially growing pause. Retries come out of a budget shared by every
+ * fetch, a share of the requests made plus a few to start with, so that when
+ * NOAA is down as a whole the run fails fast rather than multiplying the load.
+ *
+ * With hedging on, a request still unanswered after the hedge_percentile
+ * fetch latency gets a second request sent alongside it, which is also paid
+ * for from the retry budget, and whichever answers first is used. A fetch
+ * never runs past the deadline it is given.
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RetryingFetcher
+{
+	// Retries allowed before any share of the requests has been earned
+	final static long MIN_RETRIES = 10;
+
+	// Fetch latencies recorded before hedging starts, so the percentile means something
+	final static long MIN_HEDGE_SAMPLES = 100;
+
+	// Longest pause between attempts
+	final static long MAX_BACKOFF = 10000;
+
+	private final HttpFetcher fetcher;
+	private final WeatherConfig config;
+	private final Random random = new Random();
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+
+	// Runs requests while their caller waits to hedge; null if hedging is off
+	private final ExecutorService hedges;
+
+	public RetryingFetcher( HttpFetcher fetcher, WeatherConfig config )
+	{
+		this.fetcher = fetcher;
+		this.config = config;
+
+		if( config.fetch_hedge_percentile > 0 )
+		{
+			hedges = Executors.newCachedThreadPool( new ThreadFactory() {
+				public Thread newThread( Runnable r )
+				{
+					Thread t = new Thread( r, "Hedged fetch" );
+					t.setDaemon( true );
+					return t;
+				}
+			} );
+		}
+		else
+		{
+			hedges = null;
+		}
+	}
+
+	// Fetches the url, retrying within the budget, giving up once deadline (epoch millis) has passed
+	public String fetch( String url, long deadline ) throws MalformedURLException, IOException
+	{
+		for( int attempt = 0; ; attempt++ )
+		{
+			requests.incrementAndGet();
+
+			try
+			{
+				return hedges != null ? hedged( url, deadline ) : fetcher.fetch( url, deadline );
+			}
+			catch( FileNotFoundException fnfex )
+			{
+				// 404 and 410 won't get better by asking again
+				throw fnfex;
+			}
+			catch( IOException ioex )
+			{
+				if( attempt >= config.fetch_retries || !spendRetry() )
+					throw ioex;
+
+				long pause = backoff( attempt );
+				if( System.currentTimeMillis() + pause >= deadline )
+					throw ioex;
+
+				Metrics.FETCH_RETRIES.inc();
+				sleep( pause );
+			}
+		}
+	}
+
+	// Full jitter: anywhere up to the exponential backoff for the attempt
+	long backoff( int attempt )
+	{
+		long ceiling = Math.min( MAX_BACKOFF, config.fetch_retry_backoff << Math.min( attempt, 16 ) );
+		synchronized( random )
+		{
+			return ceiling > 0 ? (long)( random.nextDouble() * ceiling ) : 0;
+		}
+	}
+
+	// Takes a retry from the budget if there is one left
+	boolean spendRetry()
+	{
+		long allowed = MIN_RETRIES + requests.get() * config.fetch_retry_budget_percent / 100;
+
+		for( long spent = retries.get(); spent < allowed; spent = retries.get() )
+		{
+			if( retries.compareAndSet( spent, spent + 1 ) )
+				return true;
+		}
+
+		Metrics.FETCH_RETRY_BUDGET_EXHAUSTED.inc();
+		return false;
+	}
+
+	private String hedged( final String url, final long deadline ) throws IOException
+	{
+		CompletionService< String > attempts = new ExecutorCompletionService< String >( hedges );
+		Callable< String > request = new Callable< String >() {
+			public String call() throws Exception
+			{
+				return fetcher.fetch( url, deadline );
+			}
+		};
+
+		List< Future< String > > sent = new ArrayList< Future< String > >( 2 );
+		sent.add( attempts.submit( request ) );
+
+		try
+		{
+			Future< String > done = null;
+
+			if( Metrics.FETCH_LATENCY.getCount() >= MIN_HEDGE_SAMPLES )
+			{
+				long delay = Metrics.FETCH_LATENCY.quantile( config.fetch_hedge_percentile / 100.0 ) / 1000;
+				done = attempts.poll( Math.min( delay, remaining( deadline ) ), TimeUnit.MILLISECONDS );
+
+				if( done == null && remaining( deadline ) > 0 && spendRetry() )
+				{
+					Metrics.FETCH_HEDGES.inc();
+					sent.add( attempts.submit( request ) );
+				}
+			}
+
+			IOException failure = null;
+
+			for( int outstanding = sent.size(); outstanding > 0; outstanding-- )
+			{
+				if( done == null )
+					done = attempts.poll( remaining( deadline ), TimeUnit.MILLISECONDS );
+
+				if( done == null )
+					throw new SocketTimeoutException( "Run deadline passed fetching " + url );
+
+				try
+				{
+					String data = done.get();
+					if( sent.size() > 1 && done == sent.get( 1 ) )
+						Metrics.FETCH_HEDGE_WINS.inc();
+					return data;
+				}
+				catch( ExecutionException eex )
+				{
+					if( eex.getCause() instanceof IOException )
+						failure = (IOException)eex.getCause();
+					else if( eex.getCause() instanceof RuntimeException )
+						throw (RuntimeException)eex.getCause();
+					else
+						throw new IOException( eex.getCause().toString() );
+				}
+
+				done = null;
+			}
+
+			throw failure;
+		}
+		catch( InterruptedException iex )
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "Interrupted fetching " + url );
+		}
+		finally
+		{
+			// the loser is left to its read timeout, which ends by the deadline
+			for( Future< String > future : sent )
+				future.cancel( true );
+		}
+	}
+
+	private static long remaining( long deadline )
+	{
+		return Math.max( 0, deadline - System.currentTimeMillis() );
+	}
+
+	private static void sleep( long millis ) throws InterruptedIOException
+	{
+		try
+		{
+			Thread.sleep( millis );
+		}
+		catch( InterruptedException iex )
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "Interrupted between fetch attempts" );
+		}
+	}
+
+}
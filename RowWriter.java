@@ -0,0 +1,29 @@
+/*
+ * RowWriter
+ *
+ * Ryan Tenney 2007
+ *
+ * Something rows can be queued on and sent to a table in batches: either
+ * InsertPlans, which sends batched INSERTs, or BulkLoader, which streams
+ * them through the database's bulk load path.
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.sql.SQLException;
+import java.util.Map;
+
+public interface RowWriter
+{
+	// Queues a row; fields missing from the row are left unset, and the string "NA" is stored as NULL
+	public void add( Map< String, ? extends Object > row ) throws SQLException;
+
+	// Number of rows queued since the last execute()
+	public int pending();
+
+	// Sends every queued row, returning the number of rows sent
+	public int execute() throws SQLException;
+
+	public void close();
+}
@@ -0,0 +1,32 @@
+/*
+ * ShardCoordinator
+ *
+ * Ryan Tenney 2007
+ *
+ * Membership for workers sharing the station polling. Each worker holds a
+ * lease that it renews with heartbeat(); a worker whose lease runs out is no
+ * longer live, and its stations move to the others.
+ *
+ * Implementations are named by the shard_coordinator config key and need a
+ * public no-argument constructor.
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.io.IOException;
+import java.util.Set;
+
+public interface ShardCoordinator
+{
+	public void init( WeatherConfig config ) throws IOException;
+
+	// Takes out or renews the worker's lease
+	public void heartbeat( String worker ) throws IOException;
+
+	// Gives up the worker's lease at once, instead of waiting for it to run out
+	public void leave( String worker ) throws IOException;
+
+	// Ids of the workers holding a lease that has not run out
+	public Set< String > liveWorkers() throws IOException;
+}
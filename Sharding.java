@@ -0,0 +1,188 @@
+/*
+ * Sharding
+ *
+ * Ryan Tenney 2007
+ *
+ * Splits the stations between several retrWeather workers. Workers announce
+ * themselves through a ShardCoordinator, and each station belongs to the live
+ * worker a ConsistentHashRing of the current members assigns it to.
+ *
+ * Workers started together would each find only themselves live at first,
+ * and each claim every station. So on first joining, and whenever the live
+ * workers change, a worker waits shard_settle and reads them again, until two
+ * reads agree, before it rebuilds the ring.
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class Sharding
+{
+	private final String worker;
+	private final ShardCoordinator coordinator;
+	private final int virtualNodes;
+	private final long lease;
+	private final long settle;
+
+	// Reads of the live workers before giving up on them agreeing, and taking the last
+	final static int MAX_SETTLE_ROUNDS = 5;
+
+	private volatile ConsistentHashRing ring;
+
+	// Held through a refresh, settling included, so stop() isn't kept waiting on it
+	private final Object refreshing = new Object();
+	private boolean joined = false;
+	private ScheduledExecutorService heartbeats;
+
+	public Sharding( WeatherConfig config ) throws IOException
+	{
+		this.worker = config.shard_worker_id;
+		this.virtualNodes = config.shard_virtual_nodes;
+		this.lease = config.shard_lease;
+		this.settle = config.shard_settle;
+
+		try
+		{
+			this.coordinator = (ShardCoordinator)Class.forName( config.shard_coordinator ).getDeclaredConstructor().newInstance();
+		}
+		catch( Exception ex )
+		{
+			throw new IOException( "Can't create shard coordinator " + config.shard_coordinator + ": " + ex );
+		}
+
+		coordinator.init( config );
+		this.ring = new ConsistentHashRing( Collections.singleton( worker ), virtualNodes );
+	}
+
+	public String getWorker()
+	{
+		return worker;
+	}
+
+	// Renews this worker's lease and rebuilds the ring if the live workers changed
+	public void refresh() throws IOException
+	{
+		synchronized( refreshing )
+		{
+			settle();
+		}
+	}
+
+	private void settle() throws IOException
+	{
+		coordinator.heartbeat( worker );
+
+		Set< String > live = liveWorkers();
+
+		if( !joined || !live.equals( ring.nodes() ) )
+		{
+			for( int round = 0; settle > 0 && round < MAX_SETTLE_ROUNDS; round++ )
+			{
+				sleep( settle );
+
+				Set< String > again = liveWorkers();
+				if( again.equals( live ) )
+					break;
+
+				live = again;
+			}
+
+			joined = true;
+
+			if( !live.equals( ring.nodes() ) )
+			{
+				ring = new ConsistentHashRing( live, virtualNodes );
+				System.err.println( "Shard " + worker + ": workers now " + live );
+			}
+		}
+	}
+
+	private Set< String > liveWorkers() throws IOException
+	{
+		Set< String > live = coordinator.liveWorkers();
+		live.add( worker );
+		return live;
+	}
+
+	private static void sleep( long millis ) throws InterruptedIOException
+	{
+		try
+		{
+			Thread.sleep( millis );
+		}
+		catch( InterruptedException iex )
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "Interrupted waiting for shard workers to settle" );
+		}
+	}
+
+	// Renews the lease in the background, a few times per lease period, until stop()
+	public synchronized void start() throws IOException
+	{
+		refresh();
+
+		if( heartbeats != null )
+			return;
+
+		heartbeats = Executors.newSingleThreadScheduledExecutor();
+		heartbeats.scheduleWithFixedDelay( new Runnable() {
+			public void run()
+			{
+				try
+				{
+					refresh();
+				}
+				catch( IOException ioex )
+				{
+					System.err.println( "Shard " + worker + ": heartbeat failed" );
+					ioex.printStackTrace();
+				}
+			}
+		}, lease / 3, lease / 3, TimeUnit.MILLISECONDS );
+	}
+
+	// Stops renewing and gives up the lease, handing this worker's stations to the others
+	public synchronized void stop()
+	{
+		if( heartbeats != null )
+		{
+			heartbeats.shutdownNow();
+			heartbeats = null;
+		}
+
+		try
+		{
+			coordinator.leave( worker );
+		}
+		catch( IOException ioex )
+		{
+			ioex.printStackTrace();
+		}
+	}
+
+	public boolean owns( String station_id )
+	{
+		return worker.equals( ring.nodeFor( station_id ) );
+	}
+
+	// The ids this worker owns, in their original order
+	public String[] filter( String[] ids )
+	{
+		List< String > owned = new ArrayList< String >();
+
+		for( String id : ids )
+		{
+			if( owns( id ) )
+				owned.add( id );
+		}
+
+		return owned.toArray( new String[ owned.size() ] );
+	}
+
+}
@@ -0,0 +1,139 @@
+/*
+ * StationIndexReader
+ *
+ * Ryan Tenney 2007
+ *
+ * Streams the NOAA station index one <station> element at a time, so that
+ * the whole document never has to be held in memory
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.io.*;
+import java.util.*;
+
+public class StationIndexReader
+{
+	private final Reader in;
+	private final char[] open;
+	private final char[] close;
+
+	private final char[] buf = new char[ 8192 ];
+	private int pos = 0;
+	private int len = 0;
+
+	// Body of the element currently being read, reused between elements
+	private final StringBuilder body = new StringBuilder( 1024 );
+
+	public StationIndexReader( Reader in, String element )
+	{
+		this.in = in;
+		this.open = ( "<" + element + ">" ).toCharArray();
+		this.close = ( "</" + element + ">" ).toCharArray();
+	}
+
+	// Returns the child name/value pairs of the next element, or null once the stream is exhausted
+	public Map< String, String > next() throws IOException
+	{
+		if( !scanTo( open, null ) )
+			return null;
+
+		body.setLength( 0 );
+
+		if( !scanTo( close, body ) )
+			return null;
+
+		// drop the closing tag, which scanTo copied along with the body
+		body.setLength( body.length() - close.length );
+
+		return parseChildren( body );
+	}
+
+	public void close() throws IOException
+	{
+		in.close();
+	}
+
+	// Reads up to and including the tag, copying everything read into out if it is not null.
+	// The tags scanned for only contain '<' as their first char, so a mismatch never has to back up.
+	private boolean scanTo( char[] tag, StringBuilder out ) throws IOException
+	{
+		int matched = 0;
+		int c;
+
+		while( ( c = read() ) != -1 )
+		{
+			if( out != null )
+				out.append( (char)c );
+
+			if( c == tag[ matched ] )
+			{
+				if( ++matched == tag.length )
+					return true;
+			}
+			else
+			{
+				matched = c == tag[ 0 ] ? 1 : 0;
+			}
+		}
+
+		return false;
+	}
+
+	private int read() throws IOException
+	{
+		if( pos == len )
+		{
+			len = in.read( buf, 0, buf.length );
+			pos = 0;
+
+			if( len <= 0 )
+			{
+				len = 0;
+				return -1;
+			}
+		}
+
+		return buf[ pos++ ];
+	}
+
+	// Splits a flat run of <name>value</name> elements into a map
+	public static Map< String, String > parseChildren( CharSequence xml )
+	{
+		Map< String, String > pairs = new HashMap< String, String >();
+		String str = xml.toString();
+		int i = 0;
+
+		while( ( i = str.indexOf( '<', i ) ) != -1 )
+		{
+			int nameEnd = str.indexOf( '>', i );
+			if( nameEnd == -1 )
+				break;
+
+			String name = str.substring( i + 1, nameEnd );
+
+			// skip closing tags, comments, processing instructions and anything with attributes
+			if( name.length() == 0 || !Character.isLetterOrDigit( name.charAt( 0 ) ) || name.indexOf( ' ' ) != -1 )
+			{
+				i = nameEnd + 1;
+				continue;
+			}
+
+			int valueEnd = str.indexOf( "</" + name + ">", nameEnd + 1 );
+			if( valueEnd == -1 )
+			{
+				i = nameEnd + 1;
+				continue;
+			}
+
+			if( valueEnd > nameEnd + 1 )
+				pairs.put( name, str.substring( nameEnd + 1, valueEnd ) );
+
+			i = valueEnd + name.length() + 3;
+		}
+
+		return pairs;
+	}
+
+}
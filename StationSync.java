@@ -0,0 +1,338 @@
+/*
+ * StationSync
+ *
+ * Ryan Tenney 2007
+ *
+ * Brings `weather`.`stations` up to date with the NOAA station index by
+ * writing only what changed. Each station's fields are hashed and compared
+ * with the hashes from the last sync, kept in a local snapshot file: new
+ * stations are inserted, changed ones updated and those gone from the index
+ * deleted, while unchanged stations cost no SQL at all. The snapshot is only
+ * rewritten once the changes have been committed.
+ *
+ * Without a snapshot (the first sync) the ids already in the table are read
+ * instead, and every station in the index is written once.
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.*;
+import java.util.*;
+
+public class StationSync
+{
+	final static Charset UTF8 = Charset.forName( "UTF-8" );
+
+	// Deletions are skipped if the index lists fewer than this share of the stations known, as it is more likely cut short than right
+	final static double MIN_INDEX_SHARE = 0.5;
+
+	private final retrWeather r;
+	private final WeatherConfig config;
+	private final File snapshotFile;
+	private final MessageDigest md5;
+
+	public StationSync( retrWeather r )
+	{
+		this.r = r;
+		this.config = r.config();
+		this.snapshotFile = new File( config.station_sync_snapshot );
+
+		try
+		{
+			this.md5 = MessageDigest.getInstance( "MD5" );
+		}
+		catch( NoSuchAlgorithmException nsaex )
+		{
+			throw new IllegalStateException( "MD5 not available" );
+		}
+	}
+
+	public void run()
+	{
+		Connection connection = null;
+		StationIndexReader stations = null;
+
+		try
+		{
+			// station id -> hash as of the last sync; a null hash means in the table but never hashed
+			Map< String, String > known = loadSnapshot();
+			boolean seeded = known != null;
+
+			connection = r.borrowConnection();
+
+			if( known == null )
+			{
+				known = new HashMap< String, String >();
+				for( String id : r.getAllStationIds( connection ) )
+					known.put( id, null );
+			}
+
+			Map< String, String > snapshot = new HashMap< String, String >( known.size() * 2 );
+			List< Map< String, String > > added = new ArrayList< Map< String, String > >();
+			List< Map< String, String > > changed = new ArrayList< Map< String, String > >();
+			int unchanged = 0;
+
+			stations = r.getStationIndexReader();
+			Map< String, String > values;
+
+			while( ( values = stations.next() ) != null )
+			{
+				String id = values.get( "station_id" );
+				if( id == null )
+					continue;
+
+				String hash = hash( values );
+				snapshot.put( id, hash );
+
+				if( !known.containsKey( id ) )
+					added.add( values );
+				else if( !hash.equals( known.get( id ) ) )
+					changed.add( values );
+				else
+					unchanged++;
+			}
+
+			List< String > removed = new ArrayList< String >();
+			for( String id : known.keySet() )
+			{
+				if( !snapshot.containsKey( id ) )
+					removed.add( id );
+			}
+
+			if( !removed.isEmpty() && snapshot.size() < known.size() * MIN_INDEX_SHARE )
+			{
+				System.err.println( "station_sync: the index lists " + snapshot.size() + " of " + known.size() + " known stations; not deleting any" );
+
+				// keep them in the snapshot, so they are looked at again next time
+				for( String id : removed )
+					snapshot.put( id, known.get( id ) );
+				removed.clear();
+			}
+
+			System.err.println( "station_sync: " + added.size() + " added, " + changed.size() + " changed, " + removed.size() + " removed, " + unchanged + " unchanged" + ( seeded ? "" : " (first sync)" ) );
+
+			if( !retrWeather.SQL_ACTIVE )
+				return;
+
+			write( connection, added, changed, removed );
+			saveSnapshot( snapshot );
+
+			Metrics.STATIONS_ADDED.add( added.size() );
+			Metrics.STATIONS_CHANGED.add( changed.size() );
+			Metrics.STATIONS_REMOVED.add( removed.size() );
+			Metrics.STATIONS_UNCHANGED.add( unchanged );
+		}
+		catch( IOException ioex )
+		{
+			Metrics.STATION_LIST_ERRORS.inc();
+			ioex.printStackTrace();
+		}
+		catch( SQLException sqlex )
+		{
+			Metrics.STATION_LIST_ERRORS.inc();
+			System.err.println("SQLException: " + sqlex.getMessage());
+			System.err.println("SQLState: " + sqlex.getSQLState());
+			System.err.println("VendorError: " + sqlex.getErrorCode());
+			r.invalidateConnection( connection );
+			connection = null;
+		}
+		finally
+		{
+			if( stations != null )
+			{
+				try
+				{
+					stations.close();
+				}
+				catch( IOException ioex )
+				{
+					// done with it either way
+				}
+			}
+
+			r.releaseConnection( connection );
+		}
+	}
+
+	// Inserts, updates and deletes in one transaction
+	private void write( Connection connection, List< Map< String, String > > added, List< Map< String, String > > changed, List< String > removed ) throws SQLException
+	{
+		String q = config.sqlFieldQuoteChar;
+		connection.setAutoCommit( false );
+
+		if( !added.isEmpty() )
+		{
+			RowWriter inserts = r.bulkStations( connection );
+			int batchSize = config.bulk_load ? config.bulk_batch_size : config.insert_batch_size;
+
+			try
+			{
+				for( Map< String, String > values : added )
+				{
+					inserts.add( values );
+					if( inserts.pending() >= batchSize )
+						inserts.execute();
+				}
+				inserts.execute();
+			}
+			finally
+			{
+				inserts.close();
+			}
+		}
+
+		if( !changed.isEmpty() )
+		{
+			List< String > fields = new ArrayList< String >();
+			StringBuilder sql = new StringBuilder( "UPDATE `weather`.`stations` SET " );
+
+			for( String field : config.station_fields )
+			{
+				if( field.equals( "station_id" ) )
+					continue;
+
+				if( !fields.isEmpty() )
+					sql.append( ", " );
+				sql.append( q ).append( field ).append( q ).append( " = ?" );
+				fields.add( field );
+			}
+
+			sql.append( " WHERE " ).append( q ).append( "station_id" ).append( q ).append( " = ?;" );
+
+			PreparedStatement update = connection.prepareStatement( sql.toString() );
+
+			try
+			{
+				int pending = 0;
+
+				for( Map< String, String > values : changed )
+				{
+					for( int i = 0; i < fields.size(); i++ )
+						InsertPlans.bind( update, i + 1, values.get( fields.get( i ) ) );
+					update.setString( fields.size() + 1, values.get( "station_id" ) );
+					update.addBatch();
+
+					if( ++pending >= config.insert_batch_size )
+					{
+						update.executeBatch();
+						pending = 0;
+					}
+				}
+
+				if( pending > 0 )
+					update.executeBatch();
+			}
+			finally
+			{
+				update.close();
+			}
+		}
+
+		if( !removed.isEmpty() )
+		{
+			PreparedStatement delete = connection.prepareStatement( "DELETE FROM `weather`.`stations` WHERE " + q + "station_id" + q + " = ?;" );
+
+			try
+			{
+				for( String id : removed )
+				{
+					delete.setString( 1, id );
+					delete.addBatch();
+				}
+
+				delete.executeBatch();
+			}
+			finally
+			{
+				delete.close();
+			}
+		}
+
+		connection.commit();
+	}
+
+	// Hash of the station's fields, in config order, so a change to any of them is seen
+	String hash( Map< String, String > values )
+	{
+		md5.reset();
+
+		for( String field : config.station_fields )
+		{
+			String value = values.get( field );
+
+			if( value == null )
+			{
+				md5.update( (byte)0xFF );
+			}
+			else
+			{
+				md5.update( value.getBytes( UTF8 ) );
+				md5.update( (byte)0 );
+			}
+		}
+
+		return RecordHasher.toHex( md5.digest() );
+	}
+
+	// station id -> hash from the last sync, or null if there hasn't been one
+	private Map< String, String > loadSnapshot() throws IOException
+	{
+		if( !snapshotFile.exists() )
+			return null;
+
+		Map< String, String > snapshot = new HashMap< String, String >();
+		BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( snapshotFile ), UTF8 ) );
+
+		try
+		{
+			String line;
+			while( ( line = in.readLine() ) != null )
+			{
+				int tab = line.indexOf( '\t' );
+				if( tab > 0 )
+					snapshot.put( line.substring( 0, tab ), line.substring( tab + 1 ) );
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+
+		return snapshot;
+	}
+
+	// One "station_id<tab>hash" line per station, written alongside and renamed over
+	private void saveSnapshot( Map< String, String > snapshot ) throws IOException
+	{
+		File tmp = new File( snapshotFile.getPath() + ".tmp" );
+		Writer out = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( tmp ), UTF8 ) );
+
+		try
+		{
+			for( Map.Entry< String, String > entry : new TreeMap< String, String >( snapshot ).entrySet() )
+			{
+				out.write( entry.getKey() );
+				out.write( '\t' );
+				out.write( entry.getValue() != null ? entry.getValue() : "" );
+				out.write( '\n' );
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+
+		if( !tmp.renameTo( snapshotFile ) )
+		{
+			snapshotFile.delete();
+			if( !tmp.renameTo( snapshotFile ) )
+				throw new IOException( "Can't write station snapshot " + snapshotFile );
+		}
+	}
+
+}
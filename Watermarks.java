@@ -0,0 +1,96 @@
+/*
+ * Watermarks
+ *
+ * Ryan Tenney 2007
+ *
+ * Time of the latest stored observation for each station, loaded from the
+ * database once and kept up to date as new observations are committed
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class Watermarks
+{
+	// Returned by get() for a station with no stored observations
+	public final static long NONE = Long.MIN_VALUE;
+
+	final static String query = "SELECT `station_id`, MAX( `observation_time_posix` ) AS `last` FROM `weather`.`observed` GROUP BY `station_id`;";
+
+	private final ConcurrentMap< String, Long > last = new ConcurrentHashMap< String, Long >();
+	private volatile boolean loaded = false;
+
+	// Replaces the cached watermarks with the latest observation time of every station in the database
+	public void load( Connection connection ) throws SQLException
+	{
+		Statement s = connection.createStatement();
+
+		try
+		{
+			ResultSet rs = s.executeQuery( query );
+			Map< String, Long > loading = new HashMap< String, Long >();
+
+			while( rs.next() )
+			{
+				long t = rs.getLong( "last" );
+				if( !rs.wasNull() )
+					loading.put( rs.getString( "station_id" ), t );
+			}
+
+			rs.close();
+
+			last.clear();
+			last.putAll( loading );
+			loaded = true;
+		}
+		finally
+		{
+			s.close();
+		}
+	}
+
+	public boolean isLoaded()
+	{
+		return loaded;
+	}
+
+	// Latest stored observation time for the station in epoch millis, or NONE
+	public long get( String station_id )
+	{
+		Long t = last.get( station_id );
+		return t != null ? t.longValue() : NONE;
+	}
+
+	// True if an observation made at timeInMillis is newer than anything stored for the station
+	public boolean isNewer( String station_id, long timeInMillis )
+	{
+		return timeInMillis > get( station_id );
+	}
+
+	// Records a committed observation; the watermark only ever moves forward
+	public void advance( String station_id, long timeInMillis )
+	{
+		Long prev = last.putIfAbsent( station_id, timeInMillis );
+
+		while( prev != null && prev.longValue() < timeInMillis )
+		{
+			if( last.replace( station_id, prev, timeInMillis ) )
+				return;
+
+			prev = last.get( station_id );
+		}
+	}
+
+	public void advanceAll( Map< String, Long > committed )
+	{
+		for( Map.Entry< String, Long > entry : committed.entrySet() )
+		{
+			advance( entry.getKey(), entry.getValue().longValue() );
+		}
+	}
+
+}
@@ -0,0 +1,284 @@
+/*
+ * WeatherConfig
+ *
+ * Ryan Tenney 2007
+ *
+ * Typed snapshot of retrWeather.xml, parsed once so that nothing on the
+ * fetch and insert paths has to look up or convert a config string
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.util.*;
+
+public class WeatherConfig
+{
+	// A URL with $0, $1, ... placeholders, split once into literal text and parameter indexes
+	public static class UrlTemplate
+	{
+		private final String[] literals;
+		private final int[] params;
+		private final int length;
+
+		public UrlTemplate( String template )
+		{
+			List< String > literals = new ArrayList< String >();
+			List< Integer > params = new ArrayList< Integer >();
+			int start = 0;
+
+			for( int i = 0; i < template.length(); i++ )
+			{
+				if( template.charAt( i ) == '$' && i + 1 < template.length() && Character.isDigit( template.charAt( i + 1 ) ) )
+				{
+					literals.add( template.substring( start, i ) );
+
+					int param = 0;
+					while( i + 1 < template.length() && Character.isDigit( template.charAt( i + 1 ) ) )
+						param = param * 10 + ( template.charAt( ++i ) - '0' );
+
+					params.add( param );
+					start = i + 1;
+				}
+			}
+
+			literals.add( template.substring( start ) );
+
+			this.literals = literals.toArray( new String[ literals.size() ] );
+			this.params = new int[ params.size() ];
+			for( int i = 0; i < this.params.length; i++ )
+				this.params[ i ] = params.get( i );
+
+			int length = 0;
+			for( String literal : this.literals )
+				length += literal.length();
+			this.length = length;
+		}
+
+		// Replaces each $i with values[ i ]
+		public String expand( String... values )
+		{
+			StringBuilder sb = new StringBuilder( length + 16 * params.length );
+
+			for( int i = 0; i < params.length; i++ )
+			{
+				sb.append( literals[ i ] );
+				sb.append( values[ params[ i ] ] );
+			}
+
+			sb.append( literals[ params.length ] );
+
+			return sb.toString();
+		}
+	}
+
+	// DriverManager database connection
+	public final String connector_classname;
+	public final String connection_string;
+	public final String username;
+	public final String password;
+
+	// Connection pool; times are in millis
+	public final int pool_size;
+	public final String pool_validation_query;
+	public final long pool_validate_idle;
+	public final long pool_idle_timeout;
+	public final long pool_borrow_timeout;
+
+	// URLs of XML data streams
+	public final String station_index_url;
+	public final UrlTemplate station_data_url;
+
+	// Station ids, database columns and station fields; shared, so not to be modified
+	public final String[] station_ids;
+	public final String[] database_columns;
+	public final String[] station_fields;
+
+	public final String rfc822_date_string;
+	public final String datetime_value;
+	public final boolean datetime_utc;
+
+	public final String sqlFieldQuoteChar;
+	public final String sqlValueQuoteChar;
+
+	public final int fetch_threads;
+	public final int insert_batch_size;
+
+	// Fetch timeouts and retries; times are in millis except the percentages
+	public final int fetch_connect_timeout;
+	public final int fetch_read_timeout;
+	public final int fetch_retries;
+	public final long fetch_retry_backoff;
+	public final int fetch_retry_budget_percent;
+	public final int fetch_hedge_percentile;
+	public final long run_deadline;
+
+	// Stations held between each stage of a run, and when the writer commits what it has; commit_interval is in millis
+	public final int pipeline_queue_size;
+	public final int commit_batch_size;
+	public final long commit_interval;
+
+	// Hashes of every station as of the last station_sync
+	public final String station_sync_snapshot;
+
+	// station_list and spool replay through LOAD DATA LOCAL INFILE, bulk_batch_size rows a load
+	public final boolean bulk_load;
+	public final int bulk_batch_size;
+
+	// (station, time) pairs remembered to drop repeated observations
+	public final int dedup_capacity;
+
+	// Daemon polling, in millis
+	public final long daemon_default_interval;
+	public final long daemon_min_interval;
+	public final long daemon_max_interval;
+	public final long daemon_publish_delay;
+	public final long daemon_retry_interval;
+
+	// Sharding between workers; off unless shard_worker_id is set. shard_lease and shard_settle are in millis
+	public final String shard_worker_id;
+	public final String shard_coordinator;
+	public final String shard_directory;
+	public final long shard_lease;
+	public final long shard_settle;
+	public final int shard_virtual_nodes;
+
+	// up_date and rehash
+	public final int maintenance_threads;
+	public final long maintenance_chunk_size;
+	public final int maintenance_batch_size;
+	public final String maintenance_checkpoint_dir;
+
+	// Observations of each station kept in memory; 0 for none
+	public final int ring_capacity;
+
+	// Latest-observation HTTP endpoint in daemon mode; off unless query_port is set. query_cache_size is in bytes, query_miss_ttl in millis
+	public final int query_port;
+	public final int query_threads;
+	public final long query_cache_size;
+	public final long query_miss_ttl;
+	public final int query_max_stations;
+
+	// Local spool of observations not yet known to be committed; off unless spool_directory is set
+	public final String spool_directory;
+	public final long spool_segment_size;
+	public final boolean spool_sync;
+	public final int spool_replay_batch_size;
+
+	// Archive of fetched station documents; off unless archive_directory is set
+	public final String archive_directory;
+	public final long archive_segment_size;
+
+	// Millis between metrics printed to stderr; 0 for never
+	public final long metrics_log_interval;
+
+	public WeatherConfig( Map< String, String > keys )
+	{
+		connector_classname = trimmed( keys, "connector_classname", null );
+		connection_string = trimmed( keys, "connection_string", null );
+		username = trimmed( keys, "username", null );
+		password = keys.get( "password" );
+
+		pool_size = Math.max( 1, integer( keys, "pool_size", 8 ) );
+		pool_validation_query = trimmed( keys, "pool_validation_query", "SELECT 1" );
+		pool_validate_idle = integer( keys, "pool_validate_idle_ms", 0 );
+		pool_idle_timeout = integer( keys, "pool_idle_timeout_seconds", 300 ) * 1000L;
+		pool_borrow_timeout = integer( keys, "pool_borrow_timeout_seconds", 30 ) * 1000L;
+
+		station_index_url = trimmed( keys, "station_index_url", null );
+		station_data_url = new UrlTemplate( trimmed( keys, "station_data_url", "" ) );
+
+		station_ids = csv( keys, "station_ids" );
+		database_columns = csv( keys, "database_columns" );
+		station_fields = csv( keys, "station_fields" );
+
+		rfc822_date_string = trimmed( keys, "rfc822_date_string", "observation_time_rfc822" );
+		datetime_value = trimmed( keys, "datetime_value", "observation_time" );
+		datetime_utc = Boolean.valueOf( trimmed( keys, "datetime_utc", "false" ) ).booleanValue();
+
+		sqlFieldQuoteChar = trimmed( keys, "sqlFieldQuoteChar", "" );
+		sqlValueQuoteChar = trimmed( keys, "sqlValueQuoteChar", "'" );
+
+		fetch_threads = integer( keys, "fetch_threads", 1 );
+		insert_batch_size = integer( keys, "insert_batch_size", 500 );
+		fetch_connect_timeout = Math.max( 0, integer( keys, "fetch_connect_timeout_seconds", 10 ) ) * 1000;
+		fetch_read_timeout = Math.max( 0, integer( keys, "fetch_read_timeout_seconds", 30 ) ) * 1000;
+		fetch_retries = Math.max( 0, integer( keys, "fetch_retries", 2 ) );
+		fetch_retry_backoff = Math.max( 0, integer( keys, "fetch_retry_backoff_ms", 500 ) );
+		fetch_retry_budget_percent = Math.max( 0, integer( keys, "fetch_retry_budget_percent", 10 ) );
+		fetch_hedge_percentile = Math.max( 0, Math.min( 99, integer( keys, "fetch_hedge_percentile", 0 ) ) );
+		run_deadline = Math.max( 0, integer( keys, "run_deadline_seconds", 0 ) ) * 1000L;
+		pipeline_queue_size = Math.max( 1, integer( keys, "pipeline_queue_size", 256 ) );
+		commit_batch_size = Math.max( 1, integer( keys, "commit_batch_size", 500 ) );
+		commit_interval = integer( keys, "commit_interval_seconds", 5 ) * 1000L;
+		station_sync_snapshot = trimmed( keys, "station_sync_snapshot", "stations.snapshot" );
+		bulk_load = Boolean.valueOf( trimmed( keys, "bulk_load", "false" ) ).booleanValue();
+		bulk_batch_size = Math.max( 1, integer( keys, "bulk_batch_size", 50000 ) );
+		dedup_capacity = Math.max( 1, integer( keys, "dedup_capacity", 20000 ) );
+
+		daemon_default_interval = integer( keys, "daemon_default_interval", 3600 ) * 1000L;
+		daemon_min_interval = integer( keys, "daemon_min_interval", 300 ) * 1000L;
+		daemon_max_interval = integer( keys, "daemon_max_interval", 3 * 3600 ) * 1000L;
+		daemon_publish_delay = integer( keys, "daemon_publish_delay", 900 ) * 1000L;
+		daemon_retry_interval = integer( keys, "daemon_retry_interval", 300 ) * 1000L;
+
+		shard_worker_id = trimmed( keys, "shard_worker_id", null );
+		shard_coordinator = trimmed( keys, "shard_coordinator", "FileShardCoordinator" );
+		shard_directory = trimmed( keys, "shard_directory", "shards" );
+		shard_lease = integer( keys, "shard_lease_seconds", 90 ) * 1000L;
+		shard_settle = integer( keys, "shard_settle_seconds", 5 ) * 1000L;
+		shard_virtual_nodes = integer( keys, "shard_virtual_nodes", 128 );
+
+		maintenance_threads = integer( keys, "maintenance_threads", 4 );
+		maintenance_chunk_size = Math.max( 1, integer( keys, "maintenance_chunk_size", 100000 ) );
+		maintenance_batch_size = Math.max( 1, integer( keys, "maintenance_batch_size", 1000 ) );
+		maintenance_checkpoint_dir = trimmed( keys, "maintenance_checkpoint_dir", "." );
+
+		ring_capacity = Math.max( 0, integer( keys, "ring_capacity", 72 ) );
+
+		query_port = integer( keys, "query_port", 0 );
+		query_threads = integer( keys, "query_threads", 4 );
+		query_cache_size = Math.max( 1, integer( keys, "query_cache_mb", 16 ) ) * 1024L * 1024L;
+		query_miss_ttl = integer( keys, "query_miss_ttl_seconds", 60 ) * 1000L;
+		query_max_stations = Math.max( 1, integer( keys, "query_max_stations", 100 ) );
+
+		String spool = trimmed( keys, "spool_directory", "" );
+		spool_directory = spool.length() > 0 ? spool : null;
+		spool_segment_size = Math.max( 1, integer( keys, "spool_segment_mb", 64 ) ) * 1024L * 1024L;
+		spool_sync = Boolean.valueOf( trimmed( keys, "spool_sync", "true" ) ).booleanValue();
+		spool_replay_batch_size = Math.max( 1, integer( keys, "spool_replay_batch_size", 5000 ) );
+
+		String archive = trimmed( keys, "archive_directory", "" );
+		archive_directory = archive.length() > 0 ? archive : null;
+		archive_segment_size = Math.max( 1, integer( keys, "archive_segment_mb", 256 ) ) * 1024L * 1024L;
+
+		metrics_log_interval = integer( keys, "metrics_log_interval", 0 ) * 1000L;
+	}
+
+	static String trimmed( Map< String, String > keys, String key, String defaultValue )
+	{
+		String value = keys.get( key );
+		return value != null ? value.trim() : defaultValue;
+	}
+
+	static String[] csv( Map< String, String > keys, String key )
+	{
+		String value = keys.get( key );
+		return value != null ? retrWeather.splitTrimCsv( value ) : new String[ 0 ];
+	}
+
+	static int integer( Map< String, String > keys, String key, int defaultValue )
+	{
+		String value = keys.get( key );
+
+		try
+		{
+			return value != null ? Integer.parseInt( value.trim() ) : defaultValue;
+		}
+		catch( NumberFormatException nfex )
+		{
+			throw new IllegalArgumentException( "Config key " + key + " is not a number: " + value );
+		}
+	}
+
+}
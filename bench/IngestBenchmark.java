@@ -0,0 +1,254 @@
+/*
+ * IngestBenchmark
+ *
+ * Ryan Tenney 2007
+ *
+ * Microbenchmarks for the parsing, date, insert, escaping and hashing paths
+ * of retrWeather, run against the recorded documents in bench/fixtures.
+ *
+ * Reports throughput and bytes allocated per operation, along with the
+ * collections and GC time each benchmark caused, so that a change can be
+ * compared before and after.
+ *
+ * Build and run from the project directory:
+ *
+ *   javac -d build *.java bench/IngestBenchmark.java
+ *   java -cp build IngestBenchmark [name filter]
+ *
+ * -Dbench.fixtures=<dir>     fixture directory (bench/fixtures)
+ * -Dbench.stations=<n>       stations in the generated full index (2000)
+ * -Dbench.warmup=<ms>        warmup time per benchmark (2000)
+ * -Dbench.iterations=<n>     measured iterations per benchmark (5)
+ * -Dbench.time=<ms>          time per measured iteration (1000)
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.io.*;
+import java.lang.management.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+public class IngestBenchmark
+{
+	// A single benchmarked operation; the result is consumed so the work can't be optimized away
+	static abstract class Bench
+	{
+		final String name;
+
+		Bench( String name )
+		{
+			this.name = name;
+		}
+
+		abstract Object run() throws Exception;
+	}
+
+	// Consumed results end up here
+	static volatile int sink;
+
+	static void consume( Object o )
+	{
+		sink += o != null ? o.hashCode() : 0;
+	}
+
+	public static void main( String[] args ) throws Exception
+	{
+		String filter = args.length > 0 ? args[ 0 ] : null;
+		File fixtures = new File( System.getProperty( "bench.fixtures", "bench" + File.separator + "fixtures" ) );
+		int stations = Integer.getInteger( "bench.stations", 2000 ).intValue();
+		long warmup = Long.getLong( "bench.warmup", 2000 ).longValue();
+		int iterations = Integer.getInteger( "bench.iterations", 5 ).intValue();
+		long time = Long.getLong( "bench.time", 1000 ).longValue();
+
+		final String station = read( new File( fixtures, "KORD.xml" ) );
+		final String index = expandIndex( read( new File( fixtures, "index.xml" ) ), stations );
+		final String indexBody = retrWeather.parseXmlNameValuePairs( index, true ).get( "wx_station_index" );
+
+		// the project config, minus the database connection
+		Map< String, String > keys = retrWeather.parseXmlNameValuePairs( read( new File( "retrWeather.xml" ) ), true );
+		keys.remove( "connection_string" );
+		final retrWeather r = new retrWeather( keys );
+
+		final Map< String, String > pairs = retrWeather.parseXmlNameValuePairs( station, false );
+		final String rfc822 = pairs.get( "observation_time_rfc822" );
+		final String[] columns = r.config().database_columns;
+		final String escaped = "Chicago O&apos;Hare &amp; &quot;Midway&quot; &lt;IL&gt;";
+		final String unescaped = retrWeather.unescapeChars( escaped );
+		final long millis = retrWeather.parseRfc822Millis( rfc822, false );
+		final byte[] md5 = retrWeather.hashRecord( "KORD", millis );
+
+		List< Bench > benches = new ArrayList< Bench >();
+
+		benches.add( new Bench( "parseXmlNameValuePairs" ) {
+			Object run() { return retrWeather.parseXmlNameValuePairs( station, false ); }
+		} );
+		final ObservationParser parser = new ObservationParser( "observation_time_rfc822", true );
+		benches.add( new Bench( "ObservationParser" ) {
+			Object run() { return parser.parse( station ); }
+		} );
+		benches.add( new Bench( "ObservationParser+values" ) {
+			Object run()
+			{
+				Observation o = parser.parse( station );
+				return new HashMap< String, String >( o ).size() + o.temp_c() + o.wind_degrees();
+			}
+		} );
+		benches.add( new Bench( "parseXmlElementsByName(index of " + stations + ")" ) {
+			Object run() { return retrWeather.parseXmlElementsByName( indexBody, "station" ); }
+		} );
+		benches.add( new Bench( "StationIndexReader(index of " + stations + ")" ) {
+			Object run() throws IOException
+			{
+				StationIndexReader reader = new StationIndexReader( new StringReader( index ), "station" );
+				int n = 0;
+				while( reader.next() != null )
+					n++;
+				return n;
+			}
+		} );
+		benches.add( new Bench( "parseRfc822Date" ) {
+			Object run() { return retrWeather.parseRfc822Date( rfc822, true ); }
+		} );
+		benches.add( new Bench( "parseRfc822Millis" ) {
+			Object run() { return retrWeather.parseRfc822Millis( rfc822, true ); }
+		} );
+		benches.add( new Bench( "millisToDateString" ) {
+			Object run() { return retrWeather.millisToDateString( millis, false ); }
+		} );
+		benches.add( new Bench( "constructInsert" ) {
+			Object run() { return r.constructInsert( "`weather`.`observed`", columns, pairs ); }
+		} );
+		benches.add( new Bench( "constructObservationInsert" ) {
+			Object run() { return r.constructObservationInsert( pairs ); }
+		} );
+		benches.add( new Bench( "escapeChars" ) {
+			Object run() { return retrWeather.escapeChars( unescaped ); }
+		} );
+		benches.add( new Bench( "unescapeChars" ) {
+			Object run() { return retrWeather.unescapeChars( escaped ); }
+		} );
+		benches.add( new Bench( "hashRecord" ) {
+			Object run() { return retrWeather.hashRecord( "KORD", millis ); }
+		} );
+		benches.add( new Bench( "toHex" ) {
+			Object run() { return retrWeather.toHex( md5 ); }
+		} );
+
+		System.out.println( String.format( "%-48s %14s %10s %14s %8s %8s", "Benchmark", "ops/s", "+/-", "B/op", "gc", "gc ms" ) );
+
+		for( Bench bench : benches )
+		{
+			if( filter != null && bench.name.indexOf( filter ) == -1 )
+				continue;
+
+			measure( bench, warmup, iterations, time );
+		}
+	}
+
+	static void measure( Bench bench, long warmup, int iterations, long time ) throws Exception
+	{
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+
+		runFor( bench, warmup );
+
+		double[] rates = new double[ iterations ];
+		long ops = 0;
+		long gcCount = gcCount(), gcTime = gcTime();
+		long allocated = threads.getThreadAllocatedBytes( thread );
+
+		for( int i = 0; i < iterations; i++ )
+		{
+			long start = System.nanoTime();
+			long n = runFor( bench, time );
+			rates[ i ] = n * 1e9 / ( System.nanoTime() - start );
+			ops += n;
+		}
+
+		allocated = threads.getThreadAllocatedBytes( thread ) - allocated;
+		gcCount = gcCount() - gcCount;
+		gcTime = gcTime() - gcTime;
+
+		double mean = 0, dev = 0;
+		for( double rate : rates )
+			mean += rate / iterations;
+		for( double rate : rates )
+			dev += ( rate - mean ) * ( rate - mean ) / iterations;
+
+		System.out.println( String.format( "%-48s %14.1f %10.1f %14.1f %8d %8d", bench.name, mean, Math.sqrt( dev ), (double)allocated / ops, gcCount, gcTime ) );
+	}
+
+	// Runs the benchmark in batches until the time is up, returning the number of operations
+	static long runFor( Bench bench, long millis ) throws Exception
+	{
+		long deadline = System.nanoTime() + millis * 1000000L;
+		long n = 0;
+
+		do
+		{
+			for( int i = 0; i < 16; i++ )
+				consume( bench.run() );
+			n += 16;
+		}
+		while( System.nanoTime() < deadline );
+
+		return n;
+	}
+
+	static long gcCount()
+	{
+		long n = 0;
+		for( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() )
+			n += Math.max( 0, gc.getCollectionCount() );
+		return n;
+	}
+
+	static long gcTime()
+	{
+		long t = 0;
+		for( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() )
+			t += Math.max( 0, gc.getCollectionTime() );
+		return t;
+	}
+
+	// Repeats the recorded <station> elements, with fresh station ids, until the index holds the given number of stations
+	static String expandIndex( String index, int stations )
+	{
+		int first = index.indexOf( "<station>" );
+		int last = index.lastIndexOf( "</station>" ) + "</station>".length();
+		List< String > recorded = new ArrayList< String >( retrWeather.parseXmlElementsByName( index.substring( first, last ), "station" ) );
+		StringBuilder sb = new StringBuilder( index.substring( 0, first ) );
+
+		for( int i = 0; i < stations; i++ )
+		{
+			String body = recorded.get( i % recorded.size() );
+			String id = "K" + (char)( 'A' + i / 676 % 26 ) + (char)( 'A' + i / 26 % 26 ) + (char)( 'A' + i % 26 );
+			sb.append( "<station>" ).append( body.replaceAll( "[A-Z]{4}(?=</station_id>|\\.html|\\.rss|\\.xml)", id ) ).append( "</station>\n\t" );
+		}
+
+		sb.append( index.substring( last ) );
+		return sb.toString();
+	}
+
+	static String read( File file ) throws IOException
+	{
+		InputStream in = new FileInputStream( file );
+
+		try
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream( (int)file.length() );
+			byte[] buf = new byte[ 8192 ];
+			int len;
+			while( ( len = in.read( buf ) ) != -1 )
+				out.write( buf, 0, len );
+			return new String( out.toByteArray(), Charset.forName( "ISO-8859-1" ) );
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+}
@@ -0,0 +1,565 @@
+/*
+ * LoadTest
+ *
+ * Ryan Tenney 2007
+ *
+ * End-to-end load test of retrieveForAllStations, run against stand-ins
+ * for both ends so it can be repeated anywhere: an embedded HTTP server
+ * serving a generated station index and a current observation for every
+ * station in it, built from the documents in bench/fixtures, and an
+ * in-memory JDBC driver that answers the station list, takes the inserts and
+ * simulates the time they would take. The driver keeps the latest
+ * observation time stored for each station, from inserts and from the files
+ * of LOAD DATA, and answers the watermark query with them. retrWeather reads
+ * the watermarks once, at the start of the first run, when nothing is
+ * stored yet; later runs dedup against the watermarks it then holds and
+ * advances itself, as the daemon does between polls. The driver keeps
+ * nothing else, so the spool's hash lookups always find nothing stored.
+ *
+ * The server answers each request after a delay drawn from a log-normal
+ * distribution around the median, with a share of much slower answers and a
+ * share of 503s. Each run moves every station's observation time on by an
+ * hour, so that every run stores something.
+ *
+ * Reports stations per second for each run, then the fetch latency and the
+ * database write time over all of them.
+ *
+ * Build and run from the project directory:
+ *
+ *   javac -d build *.java bench/IngestBenchmark.java bench/LoadTest.java
+ *   java -cp build LoadTest [config_key=value ...]
+ *
+ * Arguments override keys of retrWeather.xml, fetch_threads=32 say.
+ *
+ * -Dload.fixtures=<dir>      fixture directory (bench/fixtures)
+ * -Dload.stations=<n>        stations in the index (2000)
+ * -Dload.runs=<n>            runs of retrieveForAllStations (3)
+ * -Dload.latency=<ms>        median response time (50)
+ * -Dload.jitter=<sigma>      spread of the log-normal response time (0.5)
+ * -Dload.slow=<share>        share of responses that are slow (0.01)
+ * -Dload.slow_ms=<ms>        response time of a slow response (2000)
+ * -Dload.errors=<share>      share of responses that are 503 (0.01)
+ * -Dload.gzip=<bool>         gzip responses when asked to (false)
+ * -Dload.db_batch_ms=<ms>    time taken by each executeBatch or load (5)
+ * -Dload.db_row_us=<us>      further time per row in it (20)
+ *
+ * released under gpl v2
+ *
+ */
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.InetSocketAddress;
+import java.sql.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.*;
+
+public class LoadTest
+{
+	// Observation time of the first run; later runs are an hour apart
+	final static long FIRST_OBSERVATION = 1195318260000L;
+
+	final static String TIME_ELEMENT = "observation_time_rfc822";
+
+	// Station ids in the index, which the database also answers with
+	static List< String > stations = new ArrayList< String >();
+
+	// Run being served, which sets the observation time
+	static volatile int run = 0;
+
+	// Database work done
+	static final AtomicLong rowsWritten = new AtomicLong();
+	static final AtomicLong writeNanos = new AtomicLong();
+	static final AtomicLong batches = new AtomicLong();
+
+	// Latest observation time stored for each station
+	static final ConcurrentMap< String, Long > stored = new ConcurrentHashMap< String, Long >();
+
+	static long dbBatchMicros;
+	static long dbRowMicros;
+
+	public static void main( String[] args ) throws Exception
+	{
+		File fixtures = new File( System.getProperty( "load.fixtures", "bench" + File.separator + "fixtures" ) );
+		int count = Integer.getInteger( "load.stations", 2000 ).intValue();
+		int runs = Integer.getInteger( "load.runs", 3 ).intValue();
+		final double latency = Double.parseDouble( System.getProperty( "load.latency", "50" ) );
+		final double jitter = Double.parseDouble( System.getProperty( "load.jitter", "0.5" ) );
+		final double slow = Double.parseDouble( System.getProperty( "load.slow", "0.01" ) );
+		final long slowMillis = Long.getLong( "load.slow_ms", 2000 ).longValue();
+		final double errors = Double.parseDouble( System.getProperty( "load.errors", "0.01" ) );
+		final boolean gzip = Boolean.getBoolean( "load.gzip" );
+		dbBatchMicros = Long.getLong( "load.db_batch_ms", 5 ).longValue() * 1000;
+		dbRowMicros = Long.getLong( "load.db_row_us", 20 ).longValue();
+
+		final byte[] index = IngestBenchmark.expandIndex( IngestBenchmark.read( new File( fixtures, "index.xml" ) ), count ).getBytes( "ISO-8859-1" );
+		final String observation = IngestBenchmark.read( new File( fixtures, "KORD.xml" ) );
+
+		StationIndexReader reader = new StationIndexReader( new InputStreamReader( new ByteArrayInputStream( index ), "ISO-8859-1" ), "station" );
+		for( Map< String, String > station; ( station = reader.next() ) != null; )
+			stations.add( station.get( "station_id" ) );
+		reader.close();
+
+		HttpServer server = HttpServer.create( new InetSocketAddress( "127.0.0.1", 0 ), 256 );
+		server.setExecutor( Executors.newCachedThreadPool() );
+		final Random random = new Random();
+
+		server.createContext( "/", new HttpHandler() {
+			public void handle( HttpExchange exchange ) throws IOException
+			{
+				try
+				{
+					String path = exchange.getRequestURI().getPath();
+					double delay, chance;
+
+					synchronized( random )
+					{
+						chance = random.nextDouble();
+						delay = random.nextDouble() < slow ? slowMillis : latency * Math.exp( jitter * random.nextGaussian() );
+					}
+
+					Thread.sleep( (long)delay );
+
+					if( path.equals( "/index.xml" ) )
+					{
+						respond( exchange, index, gzip );
+					}
+					else if( path.startsWith( "/obs/" ) && path.endsWith( ".xml" ) )
+					{
+						if( chance < errors )
+						{
+							exchange.sendResponseHeaders( 503, -1 );
+							return;
+						}
+
+						String id = path.substring( "/obs/".length(), path.length() - ".xml".length() );
+						respond( exchange, observationOf( observation, id ).getBytes( "ISO-8859-1" ), gzip );
+					}
+					else
+					{
+						exchange.sendResponseHeaders( 404, -1 );
+					}
+				}
+				catch( InterruptedException iex )
+				{
+					exchange.sendResponseHeaders( 503, -1 );
+				}
+				finally
+				{
+					exchange.close();
+				}
+			}
+		} );
+
+		server.start();
+		String base = "http://127.0.0.1:" + server.getAddress().getPort();
+
+		// the project config, against the stand-ins, with nothing left on disk
+		Map< String, String > keys = retrWeather.parseXmlNameValuePairs( IngestBenchmark.read( new File( "retrWeather.xml" ) ), true );
+		keys.put( "connector_classname", Driver.class.getName() );
+		keys.put( "connection_string", Driver.URL );
+		keys.put( "station_index_url", base + "/index.xml" );
+		keys.put( "station_data_url", base + "/obs/$0.xml" );
+		keys.put( "spool_directory", "" );
+		keys.put( "archive_directory", "" );
+		keys.put( "query_port", "0" );
+		keys.put( "metrics_log_interval", "0" );
+		keys.remove( "shard_worker_id" );
+
+		for( String arg : args )
+		{
+			int eq = arg.indexOf( '=' );
+			if( eq > 0 )
+				keys.put( arg.substring( 0, eq ), arg.substring( eq + 1 ) );
+		}
+
+		retrWeather r = new retrWeather( keys );
+
+		System.out.println( String.format( "%d stations, fetch_threads=%d, median latency %.0f ms, %.1f%% slow, %.1f%% errors",
+										   count, r.config().fetch_threads, latency, slow * 100, errors * 100 ) );
+		System.out.println( String.format( "%-6s %10s %12s %10s %10s %10s", "run", "ms", "stations/s", "stored", "errors", "write ms" ) );
+
+		for( run = 0; run < runs; run++ )
+		{
+			long storedBefore = Metrics.OBSERVATIONS_STORED.getCount();
+			long failed = Metrics.FETCH_ERRORS.getCount();
+			long written = writeNanos.get();
+			long start = System.nanoTime();
+
+			r.retrieveForAllStations();
+
+			long elapsed = Math.max( 1, ( System.nanoTime() - start ) / 1000000 );
+			System.out.println( String.format( "%-6d %10d %12.1f %10d %10d %10d", run + 1, elapsed, stations.size() * 1000.0 / elapsed,
+											   Metrics.OBSERVATIONS_STORED.getCount() - storedBefore, Metrics.FETCH_ERRORS.getCount() - failed,
+											   ( writeNanos.get() - written ) / 1000000 ) );
+		}
+
+		System.out.println();
+		System.out.println( String.format( "fetch latency     p50 %8.1f ms   p99 %8.1f ms   max %8.1f ms",
+										   Metrics.FETCH_LATENCY.getP50() / 1000.0, Metrics.FETCH_LATENCY.getP99() / 1000.0, Metrics.FETCH_LATENCY.getMax() / 1000.0 ) );
+		System.out.println( String.format( "database writes   p50 %8.1f ms   p99 %8.1f ms   %d batches, %d rows, %d ms in all",
+										   Metrics.INSERT_EXECUTE_LATENCY.getP50() / 1000.0, Metrics.INSERT_EXECUTE_LATENCY.getP99() / 1000.0,
+										   batches.get(), rowsWritten.get(), writeNanos.get() / 1000000 ) );
+		System.out.println( String.format( "stations with observations stored %d", stored.size() ) );
+		System.out.println( String.format( "fetch retries %d, hedges %d, budget exhausted %d",
+										   Metrics.FETCH_RETRIES.getCount(), Metrics.FETCH_HEDGES.getCount(), Metrics.FETCH_RETRY_BUDGET_EXHAUSTED.getCount() ) );
+
+		server.stop( 0 );
+		System.exit( 0 );
+	}
+
+	// The recorded observation, for the given station and this run's observation time
+	static String observationOf( String recorded, String id )
+	{
+		SimpleDateFormat rfc822 = new SimpleDateFormat( "EEE, dd MMM yyyy HH:mm:ss Z", Locale.US );
+		rfc822.setTimeZone( TimeZone.getTimeZone( "GMT-6" ) );
+		String time = rfc822.format( new java.util.Date( FIRST_OBSERVATION + run * 3600000L ) );
+
+		return recorded.replace( "KORD", id ).replaceFirst( "<" + TIME_ELEMENT + ">[^<]*<", "<" + TIME_ELEMENT + ">" + time + "<" );
+	}
+
+	static void respond( HttpExchange exchange, byte[] body, boolean gzip ) throws IOException
+	{
+		String accept = exchange.getRequestHeaders().getFirst( "Accept-Encoding" );
+
+		if( gzip && accept != null && accept.indexOf( "gzip" ) != -1 )
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream( body.length / 2 );
+			GZIPOutputStream out = new GZIPOutputStream( bytes );
+			out.write( body );
+			out.close();
+			body = bytes.toByteArray();
+			exchange.getResponseHeaders().set( "Content-Encoding", "gzip" );
+		}
+
+		exchange.getResponseHeaders().set( "Content-Type", "text/xml; charset=ISO-8859-1" );
+		exchange.sendResponseHeaders( 200, body.length );
+		exchange.getResponseBody().write( body );
+	}
+
+	// Simulated time for a write of the given number of rows
+	static void write( int rows )
+	{
+		long start = System.nanoTime();
+
+		try
+		{
+			TimeUnit.MICROSECONDS.sleep( dbBatchMicros + rows * dbRowMicros );
+		}
+		catch( InterruptedException iex )
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		writeNanos.addAndGet( System.nanoTime() - start );
+		rowsWritten.addAndGet( rows );
+		batches.incrementAndGet();
+	}
+
+	// In-memory stand-in for the database; registers itself when loaded, like any JDBC driver
+	public static class Driver implements java.sql.Driver
+	{
+		final static String URL = "jdbc:loadtest:";
+
+		static
+		{
+			try
+			{
+				DriverManager.registerDriver( new Driver() );
+			}
+			catch( SQLException sqlex )
+			{
+				throw new IllegalStateException( sqlex.getMessage() );
+			}
+		}
+
+		public Connection connect( String url, Properties info )
+		{
+			return acceptsURL( url ) ? (Connection)proxy( Connection.class, new Handler() {
+				boolean autoCommit = true;
+
+				Object invoke( String method, Object[] args )
+				{
+					if( method.equals( "createStatement" ) )
+						return proxy( Statement.class, new StatementHandler( null ) );
+					if( method.equals( "prepareStatement" ) )
+						return proxy( PreparedStatement.class, new StatementHandler( (String)args[ 0 ] ) );
+					if( method.equals( "setAutoCommit" ) )
+						autoCommit = ( (Boolean)args[ 0 ] ).booleanValue();
+					if( method.equals( "getAutoCommit" ) )
+						return autoCommit;
+					if( method.equals( "isValid" ) )
+						return true;
+					return NONE;
+				}
+			} ) : null;
+		}
+
+		public boolean acceptsURL( String url )
+		{
+			return url != null && url.startsWith( URL );
+		}
+
+		public DriverPropertyInfo[] getPropertyInfo( String url, Properties info )
+		{
+			return new DriverPropertyInfo[ 0 ];
+		}
+
+		public int getMajorVersion()
+		{
+			return 1;
+		}
+
+		public int getMinorVersion()
+		{
+			return 0;
+		}
+
+		public boolean jdbcCompliant()
+		{
+			return false;
+		}
+
+		public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException
+		{
+			throw new SQLFeatureNotSupportedException();
+		}
+	}
+
+	// Answers a proxied JDBC interface; NONE gives the return type's zero value
+	static abstract class Handler implements InvocationHandler
+	{
+		final static Object NONE = new Object();
+
+		abstract Object invoke( String method, Object[] args );
+
+		public Object invoke( Object proxy, Method method, Object[] args )
+		{
+			if( method.getName().equals( "hashCode" ) )
+				return System.identityHashCode( proxy );
+			if( method.getName().equals( "equals" ) )
+				return proxy == args[ 0 ];
+			if( method.getName().equals( "toString" ) )
+				return getClass().getName();
+
+			Object result = invoke( method.getName(), args );
+			return result != NONE ? result : zero( method.getReturnType() );
+		}
+
+		static Object zero( Class< ? > type )
+		{
+			if( type == boolean.class )
+				return Boolean.FALSE;
+			if( type == int.class )
+				return Integer.valueOf( 0 );
+			if( type == long.class )
+				return Long.valueOf( 0 );
+			if( type == double.class )
+				return Double.valueOf( 0 );
+			if( type == float.class )
+				return Float.valueOf( 0 );
+			if( type == short.class )
+				return Short.valueOf( (short)0 );
+			if( type == byte.class )
+				return Byte.valueOf( (byte)0 );
+			return null;
+		}
+	}
+
+	// Answers the station list and the watermark query, and nothing for any other; inserts and loads take time and
+	// keep the latest observation time of each station written
+	static class StatementHandler extends Handler
+	{
+		final String sql;
+		final String[] columns;
+		Object[] values;
+		final List< Object[] > pending = new ArrayList< Object[] >();
+
+		StatementHandler( String sql )
+		{
+			this.sql = sql;
+			this.columns = sql != null && sql.startsWith( "INSERT" ) ? columns( sql.substring( sql.indexOf( '(' ) + 1, sql.indexOf( ") VALUES" ) ) ) : null;
+			this.values = new Object[ columns != null ? columns.length : 0 ];
+		}
+
+		Object invoke( String method, Object[] args )
+		{
+			if( method.equals( "executeQuery" ) )
+				return proxy( ResultSet.class, new ResultSetHandler( query( args != null && args.length > 0 ? (String)args[ 0 ] : sql ) ) );
+
+			if( method.startsWith( "set" ) && args != null && args.length >= 2 && args[ 0 ] instanceof Integer )
+			{
+				int index = ( (Integer)args[ 0 ] ).intValue();
+				if( index <= values.length )
+					values[ index - 1 ] = method.equals( "setNull" ) ? null : args[ 1 ];
+			}
+			else if( method.equals( "addBatch" ) )
+			{
+				pending.add( values.clone() );
+			}
+			else if( method.equals( "executeBatch" ) )
+			{
+				int[] counts = new int[ pending.size() ];
+				Arrays.fill( counts, 1 );
+				write( pending.size() );
+
+				if( columns != null && sql.indexOf( "`observed`" ) != -1 )
+				{
+					for( Object[] row : pending )
+						store( columns, row );
+				}
+
+				pending.clear();
+				return counts;
+			}
+			else if( method.equals( "execute" ) )
+			{
+				String statement = (String)args[ 0 ];
+				if( statement.startsWith( "LOAD DATA" ) )
+					load( statement );
+			}
+			else if( method.equals( "executeUpdate" ) )
+			{
+				write( 1 );
+				return 1;
+			}
+
+			return NONE;
+		}
+
+		static List< Map< String, Object > > query( String sql )
+		{
+			List< Map< String, Object > > rows = new ArrayList< Map< String, Object > >();
+
+			if( sql.indexOf( "FROM `weather`.`stations`" ) != -1 )
+			{
+				for( String id : stations )
+					rows.add( Collections.< String, Object >singletonMap( "station_id", id ) );
+			}
+			else if( sql.indexOf( "MAX( `observation_time_posix` )" ) != -1 )
+			{
+				for( Map.Entry< String, Long > entry : stored.entrySet() )
+				{
+					Map< String, Object > row = new HashMap< String, Object >();
+					row.put( "station_id", entry.getKey() );
+					row.put( "last", entry.getValue() );
+					rows.add( row );
+				}
+			}
+
+			return rows;
+		}
+
+		// LOAD DATA LOCAL INFILE; the file is read back for the stations and times it holds
+		static void load( String sql )
+		{
+			int start = sql.indexOf( "INFILE '" ) + "INFILE '".length();
+			File file = new File( sql.substring( start, sql.indexOf( "' INTO", start ) ) );
+			int list = sql.indexOf( '(', sql.indexOf( "LINES TERMINATED BY" ) ) + 1;
+			String[] columns = columns( sql.substring( list, sql.indexOf( ')', list ) ) );
+			boolean observed = sql.indexOf( "`observed`" ) != -1;
+			int rows = 0;
+
+			try
+			{
+				BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( file ), "UTF-8" ) );
+
+				try
+				{
+					for( String line; ( line = in.readLine() ) != null; rows++ )
+					{
+						if( observed )
+							store( columns, line.split( "\t", -1 ) );
+					}
+				}
+				finally
+				{
+					in.close();
+				}
+			}
+			catch( IOException ioex )
+			{
+				ioex.printStackTrace();
+			}
+
+			write( rows );
+		}
+
+		static void store( String[] columns, Object[] row )
+		{
+			String id = null;
+			long time = Long.MIN_VALUE;
+
+			for( int i = 0; i < columns.length && i < row.length; i++ )
+			{
+				if( columns[ i ].equals( "station_id" ) && row[ i ] != null )
+					id = row[ i ].toString();
+				else if( columns[ i ].equals( "observation_time_posix" ) && row[ i ] != null )
+					time = Long.parseLong( row[ i ].toString() );
+			}
+
+			if( id == null || time == Long.MIN_VALUE )
+				return;
+
+			for( Long last = stored.putIfAbsent( id, time ); last != null && last.longValue() < time; last = stored.get( id ) )
+			{
+				if( stored.replace( id, last, time ) )
+					break;
+			}
+		}
+
+		// Column names from a list such as " `a`, `b` "
+		static String[] columns( String list )
+		{
+			String[] columns = list.split( "," );
+			for( int i = 0; i < columns.length; i++ )
+				columns[ i ] = columns[ i ].replace( "`", "" ).trim();
+			return columns;
+		}
+	}
+
+	// A result set over rows of named columns
+	static class ResultSetHandler extends Handler
+	{
+		final List< Map< String, Object > > rows;
+		int row = -1;
+		boolean wasNull = false;
+
+		ResultSetHandler( List< Map< String, Object > > rows )
+		{
+			this.rows = rows;
+		}
+
+		Object invoke( String method, Object[] args )
+		{
+			if( method.equals( "next" ) )
+				return ++row < rows.size();
+			if( method.equals( "wasNull" ) )
+				return wasNull;
+
+			if( method.startsWith( "get" ) && args != null && args.length == 1 && args[ 0 ] instanceof String )
+			{
+				Object value = rows.get( row ).get( args[ 0 ] );
+				wasNull = value == null;
+
+				if( method.equals( "getString" ) )
+					return value != null ? value.toString() : null;
+				if( method.equals( "getLong" ) )
+					return value != null ? ( (Number)value ).longValue() : 0L;
+			}
+
+			return NONE;
+		}
+	}
+
+	static Object proxy( Class< ? > type, InvocationHandler handler )
+	{
+		return Proxy.newProxyInstance( LoadTest.class.getClassLoader(), new Class< ? >[] { type }, handler );
+	}
+
+}
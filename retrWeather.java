@@ -13,27 +13,51 @@ import java.io.*;
 import java.sql.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.*;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-
-import com.macfaq.net.URLGrabber;
 
 public class retrWeather
 {
 	// Debug "macro" to turn off the execution of SQL statements.
 	final static boolean SQL_ACTIVE = true;
 	
-	// Regular expressions for parsing XML elements, and date strings (as per RFC 822)
+	// Regular expression for parsing XML elements
 	final static String regex_xmlElement = "<([a-zA-Z0-9_]+)>(.+?)</\\1>";
-	final static String regex_rfc2822date = "([a-zA-Z]{3}\\s*,\\s+)?([0-3]?[0-9])\\s+([a-zA-Z]{3})\\s+([0-9]{2,4})\\s+([0-2][0-9]"
-										  + ":[0-5][0-9](:[0-5][0-9])?)(\\s+([\\-+][0-2][0-9][0-5][0-9])?([a-zA-Z]{1,3})?){1,2}";
 
-	private String[] database_columns;
-	private String[] station_ids;
-	private String[] station_fields;
+	// Typed view of the config keys
+	private WeatherConfig config;
+	
+	// Database connections, shared by every thread that writes
+	private ConnectionPool pool;
+	
+	private HttpFetcher fetcher;
+	
+	// Retries and hedges fetches through the fetcher
+	private RetryingFetcher retrying;
+	
+	// Reads fetched station documents into Observations
+	private ObservationParser parser;
+	
+	// Latest stored observation per station, so new observations can be checked without a query each
+	private Watermarks watermarks = new Watermarks();
+	
+	// Observations stored lately, to drop repeats before they reach SQL
+	private RecentObservations recent;
+	
+	// Recent observations of each station in primitive columns, or null when not kept
+	private ObservationStore observations;
 	
-	private Connection connection;
+	// Latest observation of each station ready to serve, or null when there is no query endpoint
+	private LatestObservations latest;
+	
+	// Observations written ahead of their insert, or null when not spooling
+	private ObservationSpool spool;
+	
+	// Share of the stations this worker polls, or null when not sharding
+	private Sharding sharding;
+	
+	// Every station document fetched, if configured
+	private DocumentArchive archive;
 	
 	/*
 	 * Constructor
@@ -48,22 +72,99 @@ public class retrWeather
 			System.exit( 0 );
 		}
 		
-		database_columns = splitTrimCsv( config_keys.get( "database_columns" ) );
-		station_ids = splitTrimCsv( config_keys.get( "station_ids" ) );
-		station_fields = splitTrimCsv( config_keys.get( "station_fields" ) );
+		init();
+	}
+	
+	// Uses config name/value pairs that were read elsewhere; without a connection_string no database connection is made
+	public retrWeather( Map< String, String > config_keys )
+	{
+		this.config_keys = config_keys;
+		
+		init();
+	}
+	
+	private void init()
+	{
+		config = new WeatherConfig( config_keys );
+		
+		fetcher = new HttpFetcher( config.fetch_threads, config.fetch_connect_timeout, config.fetch_read_timeout );
+		retrying = new RetryingFetcher( fetcher, config );
+		parser = new ObservationParser( config.rfc822_date_string, config.datetime_utc );
+		recent = new RecentObservations( config.dedup_capacity );
+		
+		if( config.ring_capacity > 0 )
+		{
+			observations = new ObservationStore( config.ring_capacity );
+		}
+		
+		if( config.query_port > 0 )
+		{
+			latest = new LatestObservations( config.query_cache_size, QueryServer.queryFields( config ) );
+		}
+		
+		Metrics.startLogging( config.metrics_log_interval );
+		
+		if( config.shard_worker_id != null )
+		{
+			try
+			{
+				sharding = new Sharding( config );
+			}
+			catch( IOException ioex )
+			{
+				ioex.printStackTrace();
+				System.out.println( "Sharding setup failed." );
+				System.exit( 0 );
+			}
+		}
+		
+		if( config.archive_directory != null )
+		{
+			try
+			{
+				archive = new DocumentArchive( new File( config.archive_directory ), config.archive_segment_size );
+			}
+			catch( IOException ioex )
+			{
+				ioex.printStackTrace();
+				System.out.println( "Archive setup failed." );
+				System.exit( 0 );
+			}
+		}
+		
+		if( config.connection_string == null )
+			return;
 
 		try
 		{
-			Class.forName( _config( "connector_classname" ) ).newInstance();
+			Class.forName( config.connector_classname ).newInstance();
 		}
 		catch( Exception ex )
 		{
 			ex.printStackTrace();
 		}
 
+		if( config.spool_directory != null )
+		{
+			try
+			{
+				spool = new ObservationSpool( new File( config.spool_directory ), config.spool_segment_size, config.spool_sync, config.spool_replay_batch_size );
+			}
+			catch( IOException ioex )
+			{
+				ioex.printStackTrace();
+				System.out.println( "Spool setup failed." );
+				System.exit( 0 );
+			}
+		}
+		
+		pool = new ConnectionPool( config.connection_string, config.username, config.password, config.pool_size,
+								   config.pool_validation_query, config.pool_validate_idle, config.pool_idle_timeout, config.pool_borrow_timeout );
+
+		// connect once now, so a bad connection string is reported at startup; later calls will try again
 		try
 		{
-			connection = DriverManager.getConnection( _config( "connection_string" ), _config( "username" ), _config( "password" ) );
+			pool.release( pool.borrow() );
 		}
 		catch( SQLException sqlex )
 		{
@@ -93,14 +194,19 @@ public class retrWeather
 	// Shortcut to retrieve config name/value pairs, and replace $i with params[ i ]
 	public String _config( String key, String[] params )
 	{
-		String ret = config_keys.get( key );
-		
-		for( int i = 0; i < params.length; i++ )
-		{
-			ret = ret.replaceAll( "\\$" + Integer.toString( i ), params[ i ] );
-		}
-		
-		return ret;
+		return new WeatherConfig.UrlTemplate( config_keys.get( key ) ).expand( params );
+	}
+	
+	// Recent observations kept in memory, or null if ring_capacity is 0
+	public ObservationStore observations()
+	{
+		return observations;
+	}
+	
+	// Typed config, parsed once from the name/value pairs
+	public WeatherConfig config()
+	{
+		return config;
 	}
 	
 	// Read in xml configuration file
@@ -141,185 +247,410 @@ public class retrWeather
 	 * Character escaping
 	 */
 	
-	// Mapping of reserved chars to the escape code
-	final static String[][] escape = new String[][] { { "&amp;" , "&"  },
-													  { "&quot;", "\"" },
-													  { "&apos;", "'"  },
-													  { "&lt;"  , "<"  },
-													  { "&gt;"  , ">"  } };
-	
- 	// Escapes reserved chars to make safe for an XML/HTML string ( '&' -> '&amp;' )
+	// Escapes reserved chars to make safe for an XML/HTML string ( '&' -> '&amp;' )
 	public static String escapeChars( String str )
 	{
-		for( String[] pair : escape )
+		StringBuilder sb = null;
+		int len = str.length();
+		
+		for( int i = 0; i < len; i++ )
 		{
-			str = str.replaceAll( pair[ 1 ], pair[ 0 ] );
+			char c = str.charAt( i );
+			String code;
+			
+			switch( c )
+			{
+				case '&': code = "&amp;"; break;
+				case '"': code = "&quot;"; break;
+				case '\'': code = "&apos;"; break;
+				case '<': code = "&lt;"; break;
+				case '>': code = "&gt;"; break;
+				default:
+					if( sb != null )
+						sb.append( c );
+					continue;
+			}
+			
+			// only copy once there turns out to be something to escape
+			if( sb == null )
+			{
+				sb = new StringBuilder( len + 16 );
+				sb.append( str, 0, i );
+			}
+			
+			sb.append( code );
 		}
-		return str;
+		
+		return sb != null ? sb.toString() : str;
 	}
 	
 	// Unescapes reserved chars in an XML/HTML string ( '&amp;' -> '&' )
 	public static String unescapeChars( String str )
 	{
-		for( String[] pair : escape )
-		{
-			str = str.replaceAll( pair[ 0 ], pair[ 1 ] );
-		}
-		return str;
+		int amp = str.indexOf( '&' );
+		if( amp < 0 )
+			return str;
+		
+		StringBuilder sb = new StringBuilder( str.length() );
+		sb.append( str, 0, amp );
+		unescapeChars( str, amp, str.length(), sb );
+		
+		return sb.toString();
 	}
 	
-	
-	/*
-	 * Date interpretation
-	 */
-
-	//
-	public static int getMonthByName( String monthName )
+	// Appends str from start to end to sb, decoding the five reserved char entities and numeric references in the same pass.
+	// Anything else after an '&' is copied as it is.
+	public static void unescapeChars( CharSequence str, int start, int end, StringBuilder sb )
 	{
-		int ret = -1;
-		
-		int[] i = new int[] { (int)monthName.charAt( 0 ),
-							  (int)monthName.charAt( 1 ),
-							  (int)monthName.charAt( 2 )
-		};
-		
-		char[] c = new char[] { (char)( i[ 0 ] >= 97 ? i[ 0 ] - 32 : i[ 0 ] ),
-								(char)( i[ 1 ] >= 97 ? i[ 1 ] - 32 : i[ 1 ] ),
-								(char)( i[ 2 ] >= 97 ? i[ 2 ] - 32 : i[ 2 ] )
-		};
-		
-		if( c[ 0 ] == 'A' )
-		{
-			if( c[ 1 ] == 'P' && c[ 2 ] == 'R' )
-				ret = 3;					// April
-			else if( c[ 1 ] == 'U' && c[ 2 ] == 'G' )
-				ret = 7;					// August
-		}
-		else if( c[ 0 ] == 'D' )
-		{
-			if( c[ 1 ] == 'E' && c[ 2 ] == 'C' )
-				ret = 11;
-		}
-		else if( c[ 0 ] == 'F' )
+		for( int i = start; i < end; i++ )
 		{
-			if( c[ 1 ] == 'E' && c[ 2 ] == 'B' )
-				ret = 1;					// February
-		}
-		else if( c[ 0 ] == 'J' )
-		{
-			if( c[ 1 ] == 'A' )
+			char c = str.charAt( i );
+			
+			if( c != '&' )
 			{
-				if( c[ 2 ] == 'N' )
-					ret = 0;			// January
+				sb.append( c );
+				continue;
 			}
-			else if( c[ 1 ] == 'U' )
+			
+			int semi = i + 1;
+			while( semi < end && semi - i <= 10 && str.charAt( semi ) != ';' )
+				semi++;
+			
+			int decoded = semi < end && str.charAt( semi ) == ';' ? entity( str, i + 1, semi ) : -1;
+			
+			if( decoded < 0 )
 			{
-				if( c[ 2 ] == 'N' )
-					ret = 5;		// June
-				else if( c[ 2 ] == 'L' )
-					ret = 6;
+				sb.append( c );
+				continue;
 			}
-		}
-		else if( c[ 0 ] == 'M' )
-		{
-			if( c[ 1 ] == 'A' )
+			
+			if( decoded > 0xFFFF )
+			{
+				sb.append( (char)( 0xD800 + ( ( decoded - 0x10000 ) >> 10 ) ) );
+				sb.append( (char)( 0xDC00 + ( ( decoded - 0x10000 ) & 0x3FF ) ) );
+			}
+			else
 			{
-				if( c[ 2 ] == 'R' )
-					ret = 2;			// March
-				else if( c[ 2 ] == 'Y' )
-					ret = 4;			// May
+				sb.append( (char)decoded );
 			}
+			
+			i = semi;
 		}
-		else if( c[ 0 ] == 'N' )
+	}
+	
+	// Code point of the entity named between the '&' and the ';', or -1
+	private static int entity( CharSequence str, int start, int end )
+	{
+		int len = end - start;
+		
+		if( len >= 2 && str.charAt( start ) == '#' )
 		{
-			if( c[ 1 ] == 'O' && c[ 2 ] == 'V' )
-				ret = 10;					// November
+			boolean hex = str.charAt( start + 1 ) == 'x' || str.charAt( start + 1 ) == 'X';
+			int i = hex ? start + 2 : start + 1;
+			int cp = 0;
+			
+			if( i == end )
+				return -1;
+			
+			for( ; i < end; i++ )
+			{
+				int digit = Character.digit( str.charAt( i ), hex ? 16 : 10 );
+				if( digit < 0 )
+					return -1;
+				cp = cp * ( hex ? 16 : 10 ) + digit;
+				if( cp > 0x10FFFF )
+					return -1;
+			}
+			
+			return cp;
 		}
-		else if( c[ 0 ] == 'O' )
+		
+		switch( len )
 		{
-			if( c[ 1 ] == 'C' && c[ 2 ] == 'T' )
-				ret = 9;
+			case 2:
+				if( str.charAt( start + 1 ) == 't' )
+				{
+					if( str.charAt( start ) == 'l' ) return '<';
+					if( str.charAt( start ) == 'g' ) return '>';
+				}
+				return -1;
+			case 3:
+				return str.charAt( start ) == 'a' && str.charAt( start + 1 ) == 'm' && str.charAt( start + 2 ) == 'p' ? '&' : -1;
+			case 4:
+				if( str.charAt( start ) == 'q' && str.charAt( start + 1 ) == 'u' && str.charAt( start + 2 ) == 'o' && str.charAt( start + 3 ) == 't' ) return '"';
+				if( str.charAt( start ) == 'a' && str.charAt( start + 1 ) == 'p' && str.charAt( start + 2 ) == 'o' && str.charAt( start + 3 ) == 's' ) return '\'';
+				return -1;
+			default:
+				return -1;
 		}
-		else if( c[ 0 ] == 'S' )
+	}
+	
+	
+	/*
+	 * Date interpretation
+	 */
+	
+	// Returned by parseRfc822Millis when the string holds no date
+	public final static long NOT_A_DATE = Long.MIN_VALUE;
+	
+	// Hashes looked up per query when replaying the spool
+	final static int HASH_LOOKUP_SIZE = 500;
+	
+	final static TimeZone GMT = TimeZone.getTimeZone( "GMT" );
+	
+	// TimeZone.getDefault() hands back a new clone on every call
+	final static TimeZone localZone = TimeZone.getDefault();
+	
+	// Named zones seen in date strings, so each name is only looked up once
+	final static ConcurrentMap< String, TimeZone > zonesByName = new ConcurrentHashMap< String, TimeZone >();
+
+	//
+	public static int getMonthByName( String monthName )
+	{
+		return getMonthByName( monthName, 0 );
+	}
+	
+	// Month (0 - 11) named by the three letters at offset, in any case, or -1
+	public static int getMonthByName( CharSequence str, int offset )
+	{
+		if( str.length() < offset + 3 )
+			return -1;
+		
+		// lowercase the letters, and pack them into one int to compare against
+		int key = ( ( str.charAt( offset ) | 0x20 ) << 16 ) | ( ( str.charAt( offset + 1 ) | 0x20 ) << 8 ) | ( str.charAt( offset + 2 ) | 0x20 );
+		
+		switch( key )
 		{
-			if( c[ 1 ] == 'E' && c[ 2 ] == 'P' )
-				ret = 8;
+			case ( 'j' << 16 ) | ( 'a' << 8 ) | 'n': return 0;
+			case ( 'f' << 16 ) | ( 'e' << 8 ) | 'b': return 1;
+			case ( 'm' << 16 ) | ( 'a' << 8 ) | 'r': return 2;
+			case ( 'a' << 16 ) | ( 'p' << 8 ) | 'r': return 3;
+			case ( 'm' << 16 ) | ( 'a' << 8 ) | 'y': return 4;
+			case ( 'j' << 16 ) | ( 'u' << 8 ) | 'n': return 5;
+			case ( 'j' << 16 ) | ( 'u' << 8 ) | 'l': return 6;
+			case ( 'a' << 16 ) | ( 'u' << 8 ) | 'g': return 7;
+			case ( 's' << 16 ) | ( 'e' << 8 ) | 'p': return 8;
+			case ( 'o' << 16 ) | ( 'c' << 8 ) | 't': return 9;
+			case ( 'n' << 16 ) | ( 'o' << 8 ) | 'v': return 10;
+			case ( 'd' << 16 ) | ( 'e' << 8 ) | 'c': return 11;
+			default: return -1;
 		}
-	
-		return ret;
 	}
 	
 	//
 	public static Calendar parseRfc822Date( String rfc822str, boolean convertToUTC )
 	{
-		Matcher m = Pattern.compile( regex_rfc2822date ).matcher( rfc822str );
-
-		if( m.find() )
+		long t = parseRfc822Millis( rfc822str, convertToUTC );
+		
+		if( t == NOT_A_DATE )
+			return null;
+		
+		Calendar cal = new GregorianCalendar( convertToUTC ? GMT : localZone );
+		cal.setTimeInMillis( t );
+		return cal;
+	}
+	
+	// Parses a date such as "Sat, 17 Nov 2007 14:53:00 -0500" into epoch millis, or NOT_A_DATE.
+	// With convertToUTC the zone in the string is applied, otherwise the date is read as local time.
+	public static long parseRfc822Millis( String str, boolean convertToUTC )
+	{
+		if( str == null )
+			return NOT_A_DATE;
+		
+		return parseRfc822Millis( str, 0, str.length(), convertToUTC );
+	}
+	
+	// As above, for the date in str from index from up to len, so one can be read in place from a larger document
+	public static long parseRfc822Millis( CharSequence str, int from, int len, boolean convertToUTC )
+	{
+		int i = from;
+		
+		// skip the optional day name, up to the day of the month
+		while( i < len && !isDigit( str.charAt( i ) ) )
+			i++;
+		
+		int start = i;
+		int day = 0;
+		while( i < len && isDigit( str.charAt( i ) ) && i - start < 2 )
+			day = day * 10 + ( str.charAt( i++ ) - '0' );
+		if( i == start || day > 31 )
+			return NOT_A_DATE;
+		
+		i = skipSpace( str, i, len );
+		int month = len - i >= 3 ? getMonthByName( str, i ) : -1;
+		if( month < 0 )
+			return NOT_A_DATE;
+		i = skipSpace( str, i + 3, len );
+		
+		start = i;
+		int year = 0;
+		while( i < len && isDigit( str.charAt( i ) ) && i - start < 4 )
+			year = year * 10 + ( str.charAt( i++ ) - '0' );
+		if( i - start < 2 )
+			return NOT_A_DATE;
+		if( i - start == 2 )
+			year = year < 70 ? year + 2000 : year + 1900;
+		
+		i = skipSpace( str, i, len );
+		if( i + 5 > len || str.charAt( i + 2 ) != ':' )
+			return NOT_A_DATE;
+		int hour = twoDigits( str, i, len );
+		int mins = twoDigits( str, i + 3, len );
+		int secs = 0;
+		i += 5;
+		if( i + 3 <= len && str.charAt( i ) == ':' )
 		{
-			int day, month, year, hour, mins, secs;
-			
-			day = Integer.parseInt( m.group( 2 ) );
-			month = getMonthByName( m.group( 3 ) );
-			year = Integer.parseInt( m.group( 4 ) );
-			if( m.group( 4 ).length() == 2 )
-				year = year < 70 ? year + 2000 : year + 1900;
-			
-			String[] timeParts = m.group( 5 ).split( ":", 3 );
-			hour = Integer.parseInt( timeParts[ 0 ] );
-			mins = Integer.parseInt( timeParts[ 1 ] );
-			secs = timeParts.length == 2 ? Integer.parseInt( timeParts[ 2 ] ) : 0;
-			
-			TimeZone tz = TimeZone.getTimeZone( m.group( 8 ).length() > 0 ? ( "GMT" + m.group( 8 ) ) : m.group( 9 ) );
-			Calendar cal = new GregorianCalendar();
-
-			if( convertToUTC )
-				cal.setTimeZone( tz );
-
-			cal.set( year, month, day, hour, mins, secs );
-			
-			cal.set( Calendar.MILLISECOND, 0 );
-
-			if( convertToUTC )
-			{
-				Calendar utc = new GregorianCalendar( TimeZone.getTimeZone( "GMT" ) );
-				utc.setTimeInMillis( cal.getTimeInMillis() );
-				cal = utc;
-			}
+			secs = twoDigits( str, i + 1, len );
+			i += 3;
+		}
+		if( hour < 0 || mins < 0 || secs < 0 )
+			return NOT_A_DATE;
+		
+		long local = ( daysFromCivil( year, month + 1, day ) * 86400L + hour * 3600 + mins * 60 + secs ) * 1000L;
+		
+		if( !convertToUTC )
+			return localToUtc( local, localZone );
+		
+		// zone, either as a numeric offset or a name, or both
+		i = skipSpace( str, i, len );
+		if( i + 5 <= len && ( str.charAt( i ) == '+' || str.charAt( i ) == '-' ) )
+		{
+			int hh = twoDigits( str, i + 1, len );
+			int mm = twoDigits( str, i + 3, len );
+			if( hh < 0 || mm < 0 )
+				return NOT_A_DATE;
 			
-			return cal;
+			int offset = ( hh * 60 + mm ) * 60000;
+			return str.charAt( i ) == '-' ? local + offset : local - offset;
 		}
-		else
+		
+		start = i;
+		while( i < len && i - start < 3 && Character.isLetter( str.charAt( i ) ) )
+			i++;
+		
+		if( i == start )
+			return local;
+		
+		String name = str.subSequence( start, i ).toString();
+		TimeZone tz = zonesByName.get( name );
+		if( tz == null )
 		{
-			return null;
+			tz = TimeZone.getTimeZone( name );
+			zonesByName.putIfAbsent( name, tz );
 		}
+		
+		return localToUtc( local, tz );
+	}
+	
+	// Converts wall clock time in the zone to epoch millis
+	static long localToUtc( long local, TimeZone tz )
+	{
+		int offset = tz.getOffset( local - tz.getRawOffset() );
+		long utc = local - offset;
+		int actual = tz.getOffset( utc );
+		
+		return actual == offset ? utc : local - actual;
+	}
+	
+	// Days since 1970-01-01 of a proleptic Gregorian date; month is 1 - 12
+	static long daysFromCivil( int year, int month, int day )
+	{
+		int y = month <= 2 ? year - 1 : year;
+		int era = ( y >= 0 ? y : y - 399 ) / 400;
+		int yoe = y - era * 400;
+		int doy = ( 153 * ( month > 2 ? month - 3 : month + 9 ) + 2 ) / 5 + day - 1;
+		int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		
+		return era * 146097L + doe - 719468;
+	}
+	
+	private static boolean isDigit( char c )
+	{
+		return c >= '0' && c <= '9';
+	}
+	
+	private static int skipSpace( CharSequence str, int i, int len )
+	{
+		while( i < len && ( str.charAt( i ) == ',' || Character.isWhitespace( str.charAt( i ) ) ) )
+			i++;
+		return i;
+	}
+	
+	// Value of the two digits at i, or -1
+	private static int twoDigits( CharSequence str, int i, int len )
+	{
+		if( i + 2 > len || !isDigit( str.charAt( i ) ) || !isDigit( str.charAt( i + 1 ) ) )
+			return -1;
+		return ( str.charAt( i ) - '0' ) * 10 + ( str.charAt( i + 1 ) - '0' );
 	}
 	
 	//
 	public static String calendarToDateString( Calendar cal )
 	{
-		StringBuilder sb = new StringBuilder( 20 );
+		return millisToDateString( cal.getTimeInMillis(), cal.getTimeZone() );
+	}
+	
+	// Formats epoch millis as "yyyy/MM/dd HH:mm:ss" in UTC or local time
+	public static String millisToDateString( long timeInMillis, boolean utc )
+	{
+		return millisToDateString( timeInMillis, utc ? GMT : localZone );
+	}
+	
+	public static String millisToDateString( long timeInMillis, TimeZone tz )
+	{
+		long local = timeInMillis + tz.getOffset( timeInMillis );
+		long days = local >= 0 ? local / 86400000L : ( local - 86399999L ) / 86400000L;
+		int secsOfDay = (int)( ( local - days * 86400000L ) / 1000L );
 		
-		sb.append( cal.get( Calendar.YEAR ) );
-		sb.append( "/" );
-		sb.append( pad0( cal.get( Calendar.MONTH ) + 1, 2 ) );
-		sb.append( "/" );
-		sb.append( pad0( cal.get( Calendar.DAY_OF_MONTH ), 2 ) );
+		// civil date from days since 1970-01-01
+		long z = days + 719468;
+		long era = ( z >= 0 ? z : z - 146096 ) / 146097;
+		int doe = (int)( z - era * 146097 );
+		int yoe = ( doe - doe / 1460 + doe / 36524 - doe / 146096 ) / 365;
+		int doy = doe - ( 365 * yoe + yoe / 4 - yoe / 100 );
+		int mp = ( 5 * doy + 2 ) / 153;
+		int day = doy - ( 153 * mp + 2 ) / 5 + 1;
+		int month = mp < 10 ? mp + 3 : mp - 9;
+		long year = yoe + era * 400 + ( month <= 2 ? 1 : 0 );
 		
-		sb.append( " " );
+		if( year < 0 || year > 9999 )
+		{
+			Calendar cal = new GregorianCalendar( tz );
+			cal.setTimeInMillis( timeInMillis );
+			return cal.get( Calendar.YEAR ) + "/" + pad0( cal.get( Calendar.MONTH ) + 1, 2 ) + "/" + pad0( cal.get( Calendar.DAY_OF_MONTH ), 2 ) + " "
+				 + pad0( cal.get( Calendar.HOUR_OF_DAY ), 2 ) + ":" + pad0( cal.get( Calendar.MINUTE ), 2 ) + ":" + pad0( cal.get( Calendar.SECOND ), 2 );
+		}
 		
-		sb.append( pad0( cal.get( Calendar.HOUR_OF_DAY ), 2 ) );
-		sb.append( ":" );
-		sb.append( pad0( cal.get( Calendar.MINUTE ), 2 ) );
-		sb.append( ":" );
-		sb.append( pad0( cal.get( Calendar.SECOND ), 2 ) );
+		char[] c = new char[ 19 ];
+		int y = (int)year;
+		c[ 0 ] = (char)( '0' + y / 1000 );
+		c[ 1 ] = (char)( '0' + y / 100 % 10 );
+		c[ 2 ] = (char)( '0' + y / 10 % 10 );
+		c[ 3 ] = (char)( '0' + y % 10 );
+		c[ 4 ] = '/';
+		putTwoDigits( c, 5, month );
+		c[ 7 ] = '/';
+		putTwoDigits( c, 8, day );
+		c[ 10 ] = ' ';
+		putTwoDigits( c, 11, secsOfDay / 3600 );
+		c[ 13 ] = ':';
+		putTwoDigits( c, 14, secsOfDay / 60 % 60 );
+		c[ 16 ] = ':';
+		putTwoDigits( c, 17, secsOfDay % 60 );
 		
-		return sb.toString();
+		return new String( c );
+	}
+	
+	private static void putTwoDigits( char[] c, int i, int val )
+	{
+		c[ i ] = (char)( '0' + val / 10 );
+		c[ i + 1 ] = (char)( '0' + val % 10 );
 	}
 	
 	//
 	public static Timestamp getTimestamp( String rfc822str, boolean convertToUTC )
 	{
-		return new Timestamp( parseRfc822Date( rfc822str, convertToUTC ).getTimeInMillis() );
+		return new Timestamp( parseRfc822Millis( rfc822str, convertToUTC ) );
 	}
 	
 	//
@@ -343,15 +674,66 @@ public class retrWeather
 	//
 	public String constructObservationInsert( Map< String, String > entries )
 	{
-		// add field 'observation_time'
-		Calendar cal = parseRfc822Date( entries.get( _config( "rfc822_date_string" ) ), new Boolean( _config( "datetime_utc" ) ) );
-		entries.put( _config( "datetime_value" ), calendarToDateString( cal ) );
-		entries.put( "observation_time_posix", Long.toString( cal.getTimeInMillis() ) );
+		// add field 'observation_time', to a copy as the entries may be an Observation
+		long t = observationTime( entries );
+		entries = new HashMap< String, String >( entries );
+		entries.put( config.datetime_value, millisToDateString( t, config.datetime_utc ) );
+		entries.put( "observation_time_posix", Long.toString( t ) );
 		
-		//entries.put( "hash", "UNHEX('" + toHex( hashRecord( entries.get( "station_id" ), cal.getTimeInMillis() ) ) + "')" );
-		//entries.put( "hash", new String( hashRecord( entries.get( "station_id" ), cal.getTimeInMillis() ) ) );
+		//entries.put( "hash", "UNHEX('" + toHex( hashRecord( entries.get( "station_id" ), t ) ) + "')" );
+		//entries.put( "hash", new String( hashRecord( entries.get( "station_id" ), t ) ) );
 			
-		return constructInsert( "`weather`.`observed`", database_columns, entries );
+		return constructInsert( "`weather`.`observed`", config.database_columns, entries );
+	}
+	
+	// Observation time of fetched fields in epoch millis, or NOT_A_DATE; an Observation has it parsed already
+	public long observationTime( Map< String, String > entries )
+	{
+		if( entries instanceof Observation )
+			return ( (Observation)entries ).time();
+		
+		return parseRfc822Millis( entries.get( config.rfc822_date_string ), config.datetime_utc );
+	}
+	
+	// Row for insertObserved(), made of the fetched fields and the observation time parsed from them
+	public Map< String, Object > observationRow( Map< String, String > entries, long timeInMillis )
+	{
+		Map< String, Object > row = new HashMap< String, Object >( entries );
+		row.put( config.datetime_value, millisToDateString( timeInMillis, config.datetime_utc ) );
+		row.put( "observation_time_posix", Long.valueOf( timeInMillis ) );
+		if( entries.containsKey( "station_id" ) )
+			row.put( "hash", RecordHasher.hash( entries.get( "station_id" ), timeInMillis ) );
+		return row;
+	}
+	
+	// Parameterized insert plans for `weather`.`observed`, kept with the pooled connection so each is prepared once on it
+	public InsertPlans insertObserved( Connection connection )
+	{
+		return pool.insertPlans( connection, "`weather`.`observed`", config.database_columns, config.sqlFieldQuoteChar );
+	}
+	
+	// Parameterized insert plans for `weather`.`stations`
+	public InsertPlans insertStations( Connection connection )
+	{
+		return new InsertPlans( connection, "`weather`.`stations`", config.station_fields, config.sqlFieldQuoteChar );
+	}
+	
+	// Writer for large loads into `weather`.`observed`: LOAD DATA LOCAL INFILE if bulk_load is set, else insert plans
+	public RowWriter bulkObserved( Connection connection )
+	{
+		if( config.bulk_load )
+			return new BulkLoader( connection, "`weather`.`observed`", config.database_columns, config.sqlFieldQuoteChar );
+		else
+			return new InsertPlans( connection, "`weather`.`observed`", config.database_columns, config.sqlFieldQuoteChar );
+	}
+	
+	// Writer for the whole station list into `weather`.`stations`, as for bulkObserved()
+	public RowWriter bulkStations( Connection connection )
+	{
+		if( config.bulk_load )
+			return new BulkLoader( connection, "`weather`.`stations`", config.station_fields, config.sqlFieldQuoteChar );
+		else
+			return insertStations( connection );
 	}
 	
 	//
@@ -370,9 +752,9 @@ public class retrWeather
 					sqlValues.append( " , " );
 				}
 				
-				sqlNames.append( _config( "sqlFieldQuoteChar" ) );
+				sqlNames.append( config.sqlFieldQuoteChar );
 				sqlNames.append( field );
-				sqlNames.append( _config( "sqlFieldQuoteChar" ) );
+				sqlNames.append( config.sqlFieldQuoteChar );
 				
 				if( data.get( field ).equals( "NA" ) )
 				{
@@ -380,9 +762,9 @@ public class retrWeather
 				}
 				else
 				{
-					sqlValues.append( _config( "sqlValueQuoteChar" ) );
+					sqlValues.append( config.sqlValueQuoteChar );
 					sqlValues.append( data.get( field ) );
-					sqlValues.append( _config( "sqlValueQuoteChar" ) );
+					sqlValues.append( config.sqlValueQuoteChar );
 				}
 			}
 		}
@@ -395,26 +777,38 @@ public class retrWeather
 		return sqlNames.toString();
 	}
 	
-	//
+	// Asks the database for the latest stored observation of a single station; retrieveAndStore uses the watermarks instead
 	public Calendar getLastRecord( String station_id )
 	{
+		Connection connection = null;
+		
+		Metrics.LAST_RECORD_LOOKUPS.inc();
+		
 		try
 		{
+			connection = pool.borrow();
 			CallableStatement call = connection.prepareCall( "CALL `weather`.`lastRecord`( ?, ? );" );
 			
 			call.registerOutParameter( 2, Types.VARCHAR );
 			call.setString( 1, station_id );
 			call.execute();
+			
+			String last = call.getString( 2 );
+			call.close();
 
-			if( call.getString( 2 ) != null )
-				return parseRfc822Date( call.getString( 2 ), new Boolean( _config( "datetime_utc" ) ) );
+			if( last != null )
+				return parseRfc822Date( last, config.datetime_utc );
 			else
 				return null;
 		} catch( SQLException sqlex ) {
 			System.err.println("SQLException: " + sqlex.getMessage()); 
 			System.err.println("SQLState: " + sqlex.getSQLState()); 
 			System.err.println("VendorError: " + sqlex.getErrorCode());
+			pool.invalidate( connection );
+			connection = null;
 			return null;
+		} finally {
+			pool.release( connection );
 		}
 	}
 
@@ -488,35 +882,13 @@ public class retrWeather
 	//
 	public static byte[] hashRecord( String station_id, long timeInMillis )
 	{
-		try
-		{
-			MessageDigest dig = MessageDigest.getInstance( "MD5" );
-			
-			dig.update( station_id.getBytes() );
-			for( int i = 0; i < 7; i++ )
-			{
-				dig.update( (byte)( ( timeInMillis >> ( i * 8 ) ) & 0xFF ) );
-			}
-			
-			return dig.digest();
-		}
-		catch( NoSuchAlgorithmException nsaex )
-		{
-			return null;
-		}
+		return RecordHasher.hash( station_id, timeInMillis );
 	}
 	
 	//
 	public static String toHex( byte[] data )
 	{
-		char[] HEX = new char[] { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
-		StringBuffer sb = new StringBuffer( data.length * 2 );
-		for( byte b : data )
-		{
-			sb.append( HEX[ ( b & 0xF0 ) >> 4 ] );
-			sb.append( HEX[ b & 0x0F ] );
-		}
-		return sb.toString();
+		return RecordHasher.toHex( data );
 	}
 	
 	
@@ -527,13 +899,19 @@ public class retrWeather
 	// retrieves current weather data from NOAA given a station id
 	public String getStationData( String station_id ) throws MalformedURLException, IOException
 	{
-		return URLGrabber.getDocumentAsString( _config( "station_data_url", new String[] { station_id } ) );
+		return getStationData( station_id, Long.MAX_VALUE );
 	}
 	
-	// retrieves a list of all weather stations from NOAA
-	public String getStationIndex() throws MalformedURLException, IOException
+	// as above, giving up once deadline (epoch millis) has passed
+	public String getStationData( String station_id, long deadline ) throws MalformedURLException, IOException
 	{
-		return URLGrabber.getDocumentAsString( _config( "station_index_url" ) );
+		return retrying.fetch( config.station_data_url.expand( station_id ), deadline );
+	}
+	
+	// opens the list of all weather stations from NOAA for reading one station at a time
+	public StationIndexReader getStationIndexReader() throws MalformedURLException, IOException
+	{
+		return new StationIndexReader( fetcher.openReader( config.station_index_url ), "station" );
 	}
 	
 	
@@ -544,43 +922,162 @@ public class retrWeather
 	// Retrieve and store data for the station ids specified in the config file
 	public void retrieveAndStore()
 	{
-		retrieveAndStore( station_ids );
+		retrieveAndStore( config.station_ids );
 	}
 	
-	// Retrieve and store data for the station ids passed to this function
+	// Retrieve and parse the current observation for a single station
+	public Observation fetchObservation( String station_id ) throws MalformedURLException, IOException
+	{
+		return parseObservation( fetchStationData( station_id ) );
+	}
+	
+	// Retrieve a single station's current observation document, timed
+	public String fetchStationData( String station_id ) throws MalformedURLException, IOException
+	{
+		return fetchStationData( station_id, Long.MAX_VALUE );
+	}
+	
+	public String fetchStationData( String station_id, long deadline ) throws MalformedURLException, IOException
+	{
+		long start = System.nanoTime();
+		String data;
+		
+		try
+		{
+			data = getStationData( station_id, deadline );
+		}
+		catch( IOException ioex )
+		{
+			Metrics.FETCH_ERRORS.inc();
+			throw ioex;
+		}
+		
+		long elapsed = ( System.nanoTime() - start ) / 1000;
+		Metrics.FETCH_LATENCY.record( elapsed );
+		Metrics.stationFetchLatency( station_id ).record( elapsed );
+		
+		if( archive != null )
+		{
+			try
+			{
+				archive.append( station_id, System.currentTimeMillis(), data );
+			}
+			catch( IOException ioex )
+			{
+				// the observation is still stored, it just can't be replayed from disk
+				ioex.printStackTrace();
+			}
+		}
+		
+		return data;
+	}
+	
+	public Observation parseObservation( String data )
+	{
+		long start = System.nanoTime();
+		Observation observation = parser.parse( data );
+		Metrics.PARSE_TIME.recordSince( start );
+		
+		return observation;
+	}
+	
+	// Retrieve and store data for the station ids passed to this function, committing as they come in
 	public void retrieveAndStore( String[] ids )
 	{
+		new ObservationPipeline( this ).run( ids );
+	}
+	
+	// False if the observation is known to be stored already; storeObservations checks again, so true is only a maybe
+	public boolean isUnstored( String station_id, long timeInMillis )
+	{
+		if( recent.contains( station_id, timeInMillis ) ) {
+			Metrics.RECENT_HITS.inc();
+			return false;
+		}
+		
+		if( watermarks.isLoaded() && !watermarks.isNewer( station_id, timeInMillis ) ) {
+			Metrics.WATERMARK_HITS.inc();
+			return false;
+		}
+		
+		return true;
+	}
+	
+	// Store the observations, keyed by station id, that are newer than the last one stored for their station.
+	// They are spooled before the insert commits; if it fails they stay in the spool and are replayed by a later call.
+	public void storeObservations( Map< String, ? extends Map< String, String > > observations )
+	{
+		Connection connection = null;
+		
+		try
+		{
+			connection = pool.borrow();
+			
+			if( !watermarks.isLoaded() ) {
+				watermarks.load( connection );
+			}
+		}
+		catch( SQLException sqlex )
+		{
+			Metrics.STORE_ERRORS.inc();
+			System.err.println("SQLException: " + sqlex.getMessage()); 
+			System.err.println("SQLState: " + sqlex.getSQLState()); 
+			System.err.println("VendorError: " + sqlex.getErrorCode());
+			
+			// without the database the observations can still be spooled
+			pool.invalidate( connection );
+			connection = null;
+			
+			if( spool == null ) {
+				return;
+			}
+		}
+		
 		try
 		{
-			Statement s = connection.createStatement();
+			List< ObservationSpool.Record > records = new ArrayList< ObservationSpool.Record >();
+			List< Map< String, Object > > rows = new ArrayList< Map< String, Object > >();
+			Map< String, Long > batched = new HashMap< String, Long >();
 			
-			for( String id : ids )
+			for( Map.Entry< String, ? extends Map< String, String > > observation : observations.entrySet() )
 			{
+				String id = observation.getKey();
+				
 				try
 				{
-					String xml = getStationData( id );
-					Map< String, String > pairs = parseXmlNameValuePairs( xml, false );
+					Map< String, String > pairs = observation.getValue();
 					
-					Calendar last = getLastRecord( id );
-					Calendar next = parseRfc822Date( pairs.get( "observation_time_rfc822" ), new Boolean( _config( "datetime_utc" ) ) );
+					long last = watermarks.get( id );
+					long start = System.nanoTime();
+					long next = observationTime( pairs );
+					Metrics.DATE_PARSE_TIME.recordSince( start );
+					
+					if( next == NOT_A_DATE ) {
+						Metrics.PARSE_ERRORS.inc();
+						throw new IllegalArgumentException( "Unparseable " + config.rfc822_date_string + ": " + pairs.get( config.rfc822_date_string ) );
+					}
 
 					if( !SQL_ACTIVE ) {
 						System.out.println( "\nStation : " + id );
-						
-						if( last != null ) {
-							System.out.println( "Compare : " + next.compareTo( last ) );
-						}
-
-						System.out.println( "Last    : " + ( last != null ? calendarToDateString( last  ) : "never" ) );
-						System.out.println( "Next    : " + calendarToDateString( next ) );
+						System.out.println( "Last    : " + ( last != Watermarks.NONE ? millisToDateString( last, config.datetime_utc ) : "never" ) );
+						System.out.println( "Next    : " + millisToDateString( next, config.datetime_utc ) );
 					}
 					
-					if( last == null || next.compareTo( last ) == 1 ) {
-						String query = constructObservationInsert( pairs );						
-						s.addBatch( query );
-						if( !SQL_ACTIVE ) {
-							System.out.println( "Query   : " + query );
+					if( recent.contains( id, next ) ) {
+						Metrics.RECENT_HITS.inc();
+						continue;
+					}
+					
+					if( watermarks.isNewer( id, next ) ) {
+						if( SQL_ACTIVE ) {
+							rows.add( observationRow( pairs, next ) );
+							records.add( new ObservationSpool.Record( id, next, pairs ) );
+						} else {
+							System.out.println( "Query   : " + constructObservationInsert( pairs ) );
 						}
+						batched.put( id, next );
+					} else {
+						Metrics.WATERMARK_HITS.inc();
 					}
 				}
 				catch( Exception ex )
@@ -590,57 +1087,321 @@ public class retrWeather
 				}
 			}
 			
-			if( SQL_ACTIVE ) {
-				s.executeBatch();
+			if( !SQL_ACTIVE ) {
+				return;
+			}
+			
+			// the backlog goes in first, so the watermarks it is checked against don't yet include this group
+			if( connection != null && spool != null && spool.hasBacklog() ) {
+				replaySpool( connection );
+			}
+			
+			ObservationSpool.Segment spooled = null;
+			
+			if( spool != null && !records.isEmpty() ) {
+				try {
+					spooled = spool.append( records );
+				} catch( IOException ioex ) {
+					ioex.printStackTrace();
+				}
+			}
+			
+			boolean committed = false;
+			
+			try {
+				if( connection != null && !rows.isEmpty() ) {
+					insertRows( connection, rows, batched );
+				}
+				committed = connection != null;
+			} catch( SQLException sqlex ) {
+				Metrics.STORE_ERRORS.inc();
+				System.err.println("SQLException: " + sqlex.getMessage()); 
+				System.err.println("SQLState: " + sqlex.getSQLState()); 
+				System.err.println("VendorError: " + sqlex.getErrorCode());
+				pool.invalidate( connection );
+				connection = null;
+			} finally {
+				if( spooled != null ) {
+					spool.done( spooled, committed );
+				}
 			}
 			
-			s.close();
+			// once spooled they will be stored sooner or later, so there is no use spooling them again
+			if( committed || spooled != null ) {
+				recent.addAll( batched );
+				
+				for( int i = 0; i < records.size(); i++ ) {
+					ObservationSpool.Record record = records.get( i );
+					if( this.observations != null ) {
+						this.observations.add( record.station_id, record.time, record.pairs );
+					}
+					// the columns as stored, so it is served the same as once read back from the database
+					if( latest != null ) {
+						latest.put( record.station_id, record.time, rows.get( i ) );
+					}
+				}
+			}
 		}
-		catch( SQLException sqlex )
+		finally
 		{
+			pool.release( connection );
+		}
+	}
+	
+	// Inserts observation rows in one transaction, on the connection's kept insert plans, then advances the watermarks past them.
+	// On failure the connection has to be invalidated, which closes the plans and whatever is left queued on them.
+	private void insertRows( Connection connection, List< Map< String, Object > > rows, Map< String, Long > batched ) throws SQLException
+	{
+		insertRows( insertObserved( connection ), connection, rows, batched );
+	}
+	
+	private void insertRows( RowWriter observed, Connection connection, List< Map< String, Object > > rows, Map< String, Long > batched ) throws SQLException
+	{		
+		connection.setAutoCommit( false );
+		
+		for( Map< String, Object > row : rows ) {
+			observed.add( row );
+		}
+		
+		observed.execute();
+		connection.commit();
+		
+		Metrics.OBSERVATIONS_STORED.add( rows.size() );
+		watermarks.advanceAll( batched );
+	}
+	
+	// Bulk loads rows in one transaction, advancing the watermarks to newest, the latest observation time of each station among them
+	public void storeRows( Connection connection, List< Map< String, Object > > rows, Map< String, Long > newest ) throws SQLException
+	{
+		RowWriter observed = bulkObserved( connection );
+		
+		try {
+			insertRows( observed, connection, rows, newest );
+		} finally {
+			observed.close();
+		}
+	}
+	
+	// Stores what the spool holds that the database doesn't, a batch per transaction; a failure leaves the rest for next time.
+	// A record newer than its station's watermark can't have been stored; an older one is looked up by its hash, as it may
+	// have failed while a later observation of the station went in.
+	private void replaySpool( final Connection connection )
+	{
+		try {
+			int replayed = spool.replay( new ObservationSpool.Replayer() {
+				public void store( List< ObservationSpool.Record > records ) throws SQLException
+				{
+					List< Map< String, Object > > rows = new ArrayList< Map< String, Object > >( records.size() );
+					Map< String, Long > batched = new HashMap< String, Long >();
+					Set< String > seen = new HashSet< String >();
+					List< byte[] > older = new ArrayList< byte[] >();
+					
+					for( ObservationSpool.Record record : records ) {
+						if( !watermarks.isNewer( record.station_id, record.time ) ) {
+							older.add( RecordHasher.hash( record.station_id, record.time ) );
+						}
+					}
+					
+					Set< String > stored = storedHashes( connection, older );
+					
+					for( ObservationSpool.Record record : records ) {
+						String hash = toHex( RecordHasher.hash( record.station_id, record.time ) );
+						
+						// already stored, or repeated within the spool
+						if( stored.contains( hash ) ) {
+							Metrics.STORED_HITS.inc();
+							continue;
+						}
+						if( !seen.add( hash ) ) {
+							continue;
+						}
+						
+						rows.add( observationRow( record.pairs, record.time ) );
+						
+						Long newest = batched.get( record.station_id );
+						if( newest == null || newest.longValue() < record.time ) {
+							batched.put( record.station_id, record.time );
+						}
+					}
+					
+					if( !rows.isEmpty() ) {
+						storeRows( connection, rows, batched );
+					}
+				}
+			} );
+			
+			if( replayed > 0 ) {
+				System.err.println( "Replayed " + replayed + " spooled observations" );
+			}
+		} catch( IOException ioex ) {
+			ioex.printStackTrace();
+		} catch( SQLException sqlex ) {
+			Metrics.STORE_ERRORS.inc();
 			System.err.println("SQLException: " + sqlex.getMessage()); 
 			System.err.println("SQLState: " + sqlex.getSQLState()); 
 			System.err.println("VendorError: " + sqlex.getErrorCode());
 		}
 	}
 	
+	// Hashes, as hex, of those given that are already in `weather`.`observed`
+	public Set< String > storedHashes( Connection connection, List< byte[] > hashes ) throws SQLException
+	{
+		Set< String > stored = new HashSet< String >();
+		
+		for( int from = 0; from < hashes.size(); from += HASH_LOOKUP_SIZE ) {
+			int to = Math.min( hashes.size(), from + HASH_LOOKUP_SIZE );
+			StringBuilder sql = new StringBuilder( "SELECT `hash` FROM `weather`.`observed` WHERE `hash` IN ( " );
+			
+			for( int i = from; i < to; i++ ) {
+				sql.append( i > from ? ", ?" : "?" );
+			}
+			
+			PreparedStatement ps = connection.prepareStatement( sql.append( " );" ).toString() );
+			
+			try {
+				for( int i = from; i < to; i++ ) {
+					ps.setBytes( i - from + 1, hashes.get( i ) );
+				}
+				
+				ResultSet rs = ps.executeQuery();
+				while( rs.next() ) {
+					byte[] hash = rs.getBytes( "hash" );
+					if( hash != null ) {
+						stored.add( toHex( hash ) );
+					}
+				}
+				rs.close();
+			} finally {
+				ps.close();
+			}
+		}
+		
+		return stored;
+	}
+	
 	// Retrieve and store station data
 	public void retrieveStationData()
 	{
+		Connection connection = null;
+		
 		try {
-			Statement s = connection.createStatement();
-			
-			Map< String, String > xml = parseXmlNameValuePairs( getStationIndex(), true );
-			Set< String > stations = parseXmlElementsByName( xml.get( "wx_station_index" ), "station" );
+			connection = pool.borrow();
+			RowWriter inserts = bulkStations( connection );
+			int batchSize = config.bulk_load ? config.bulk_batch_size : config.insert_batch_size;
+			StationIndexReader stations = getStationIndexReader();
 			
-			for( String station : stations ) {
-				Map< String, String > values = parseXmlNameValuePairs( station, false );
-				String query = constructInsert( "`weather`.`stations`", station_fields, values );
-				if( SQL_ACTIVE ) {
-					s.addBatch( query );
-				} else {
-					System.out.println( query + "\n" );
-				}					
+			try {
+				Map< String, String > values;
+				
+				while( ( values = stations.next() ) != null ) {
+					if( SQL_ACTIVE ) {
+						inserts.add( values );
+						if( inserts.pending() >= batchSize ) {
+							Metrics.STATIONS_LOADED.add( inserts.execute() );
+						}
+					} else {
+						System.out.println( constructInsert( "`weather`.`stations`", config.station_fields, values ) + "\n" );
+					}					
+				}
+				if( SQL_ACTIVE ) Metrics.STATIONS_LOADED.add( inserts.execute() );
+			} finally {
+				stations.close();
+				inserts.close();
 			}
-			if( SQL_ACTIVE ) s.executeBatch();
 		} catch( MalformedURLException muex ) {
+			Metrics.STATION_LIST_ERRORS.inc();
 			muex.printStackTrace();			
 		} catch( IOException ioex ) {
+			Metrics.STATION_LIST_ERRORS.inc();
 			ioex.printStackTrace();
 		} catch( SQLException sqlex ) {
+			Metrics.STATION_LIST_ERRORS.inc();
 			System.err.println("SQLException: " + sqlex.getMessage()); 
 			System.err.println("SQLState: " + sqlex.getSQLState()); 
 			System.err.println("VendorError: " + sqlex.getErrorCode());
+			pool.invalidate( connection );
+			connection = null;
 		} catch( Exception ex ) {
+			Metrics.STATION_LIST_ERRORS.inc();
 			ex.printStackTrace();
+		} finally {
+			pool.release( connection );
 		}
 	}
 	
+	// Insert, update or delete only the stations that changed in the index since the last sync
+	public void syncStationData()
+	{
+		new StationSync( this ).run();
+	}
+	
 	// Retrieve and store weather data for all stations
 	public void retrieveForAllStations()
 	{
 		try {
-			Statement s = connection.createStatement();
+			String[] ids = getAllStationIds();
+			
+			if( sharding != null ) {
+				sharding.refresh();
+				ids = sharding.filter( ids );
+			}
+			
+			retrieveAndStore( ids );
+		} catch( IOException ioex ) {
+			ioex.printStackTrace();
+		} catch( SQLException sqlex ) {
+			System.err.println("SQLException: " + sqlex.getMessage()); 
+			System.err.println("SQLState: " + sqlex.getSQLState()); 
+			System.err.println("VendorError: " + sqlex.getErrorCode());
+		}
+	}
+	
+	// Borrows a connection from the pool; it must be handed back with releaseConnection()
+	public Connection borrowConnection() throws SQLException
+	{
+		return pool.borrow();
+	}
+	
+	public void releaseConnection( Connection connection )
+	{
+		pool.release( connection );
+	}
+	
+	// Hands back a borrowed connection that a call failed on, instead of releaseConnection(); it is closed rather than reused
+	public void invalidateConnection( Connection connection )
+	{
+		pool.invalidate( connection );
+	}
+	
+	// Whether this worker polls the station; always true when not sharding
+	public boolean ownsStation( String station_id )
+	{
+		return sharding == null || sharding.owns( station_id );
+	}
+	
+	// Ids of all stations in `weather`.`stations`
+	public String[] getAllStationIds() throws SQLException
+	{
+		Connection connection = pool.borrow();
+		
+		try {
+			return getAllStationIds( connection );
+		} catch( SQLException sqlex ) {
+			pool.invalidate( connection );
+			connection = null;
+			throw sqlex;
+		} finally {
+			pool.release( connection );
+		}
+	}
+	
+	// as above, on a connection the caller already holds
+	public String[] getAllStationIds( Connection connection ) throws SQLException
+	{
+		Statement s = null;
+		
+		try {
+			s = connection.createStatement();
 			
 			String query = "SELECT `station_id` FROM `weather`.`stations`;";
 			ResultSet rs = s.executeQuery( query );
@@ -650,75 +1411,88 @@ public class retrWeather
 				ids.add( rs.getString( "station_id" ) );
 			}
 			
-			s.close();
-
 			String[] array_ids = new String[ ids.size() ];
 			ids.toArray( array_ids );
 			
-			retrieveAndStore( array_ids );
-
+			return array_ids;
+		} finally {
+			if( s != null ) s.close();
+		}
+	}
+	
+	// Keep running, polling each station on its own schedule; ids may be { "all" } for every station in the database
+	public void runDaemon( String[] ids )
+	{
+		try {
+			if( ids.length == 1 && ids[ 0 ].equalsIgnoreCase( "all" ) ) {
+				ids = getAllStationIds();
+			} else if( ids.length == 0 ) {
+				ids = config.station_ids;
+			}
 		} catch( SQLException sqlex ) {
 			System.err.println("SQLException: " + sqlex.getMessage()); 
 			System.err.println("SQLState: " + sqlex.getSQLState()); 
 			System.err.println("VendorError: " + sqlex.getErrorCode());
+			return;
+		}
+		
+		if( sharding != null ) {
+			try {
+				sharding.start();
+			} catch( IOException ioex ) {
+				ioex.printStackTrace();
+				return;
+			}
+		}
+		
+		final PollingDaemon daemon = new PollingDaemon( this, config );
+		final QueryServer server;
+		
+		if( latest != null ) {
+			try {
+				server = new QueryServer( this, latest );
+				server.start();
+			} catch( IOException ioex ) {
+				ioex.printStackTrace();
+				return;
+			}
+		} else {
+			server = null;
 		}
+		
+		Runtime.getRuntime().addShutdownHook( new Thread() {
+			public void run()
+			{
+				if( server != null ) {
+					server.stop();
+				}
+				daemon.stop();
+				if( sharding != null ) {
+					sharding.stop();
+				}
+			}
+		} );
+		
+		daemon.start( ids );
+		daemon.awaitTermination();
+	}
+	
+	// Parses and stores the station documents saved in a directory or archive, as if they had just been fetched
+	public void replayDocuments( String directory )
+	{
+		new ArchiveReplay( this, new File( directory ) ).run();
 	}
 	
 	// Iterates through String values stored in field `observation_time_rfc822`, reparses and stores TimeStamp value to field `observation_time`
 	public void reparseStoredDates()
 	{
-		try
-		{
-			Statement s = connection.createStatement( ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_UPDATABLE );
-			ResultSet q = s.executeQuery( "SELECT * FROM `weather`.`observed`" );
-
-			while( q.next() )
-			{
-				//q.updateString( "observation_time", calendarToDateString( parseRfc822Date( q.getString( "observation_time_rfc822" ), new Boolean( _config( "datetime_utc" ) ) ) ) );
-				long t = parseRfc822Date( q.getString( "observation_time_rfc822" ), new Boolean( _config( "datetime_utc" ) ) ).getTimeInMillis();
-				q.updateTimestamp( "observation_time", new Timestamp( t ) );
-				q.updateLong( "observation_time_posix", t );
-				q.updateRow();
-			}
-			
-			q.close();
-			s.close();
-		}
-		catch( SQLException sqlex )
-		{
-			System.err.println("SQLException: " + sqlex.getMessage());
-			System.err.println("SQLState: " + sqlex.getSQLState());
-			System.err.println("VendorError: " + sqlex.getErrorCode());
-		}
+		new MaintenanceJob.ReparseDates( this ).run();
 	}
 	
 	// Iterates through all records and generates a hash for each record of the station id and the posix time of the observation
 	public void rehash()
 	{
-		try
-		{
-			Statement s = connection.createStatement( ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_UPDATABLE );
-			ResultSet q = s.executeQuery( "SELECT * FROM `weather`.`observed`" );
-			
-			while( q.next() )
-			{
-				//long time = parseRfc822Date( q.getString( "observation_time_rfc822" ), new Boolean( _config( "datetime_utc" ) ) ).getTimeInMillis();
-				long time = q.getLong( "observation_time_posix" );
-				byte[] md5 = hashRecord( q.getString( "station_id" ), time );
-				System.out.println( q.getString( "station_id" ) + ", " + q.getString( "observation_time_rfc822" ).replace( ',', '.' ) + ", " + time + ", " + toHex( md5 ) );
-				q.updateBytes( "hash", md5 );
-				q.updateRow();
-			}
-			
-			s.close();
-			q.close();
-		}
-		catch( SQLException sqlex )
-		{
-			System.err.println("SQLException: " + sqlex.getMessage());
-			System.err.println("SQLState: " + sqlex.getSQLState());
-			System.err.println("VendorError: " + sqlex.getErrorCode());
-		}
+		new MaintenanceJob.Rehash( this ).run();
 	}
 	
 	
@@ -736,14 +1510,26 @@ public class retrWeather
 			r.rehash();
 		} else if( args.length >= 1 && args[ 0 ].equalsIgnoreCase( "station_list" ) ) {
 			r.retrieveStationData();
+		} else if( args.length >= 1 && args[ 0 ].equalsIgnoreCase( "station_sync" ) ) {
+			r.syncStationData();
+		} else if( args.length >= 2 && args[ 0 ].equalsIgnoreCase( "replay" ) ) {
+			r.replayDocuments( args[ 1 ] );
 		} else if( args.length >= 1 && args[ 0 ].equalsIgnoreCase( "all_stations" ) ) {
 			r.retrieveForAllStations();
+		} else if( args.length >= 1 && args[ 0 ].equalsIgnoreCase( "daemon" ) ) {
+			String[] ids = new String[ args.length - 1 ];
+			System.arraycopy( args, 1, ids, 0, ids.length );
+			r.runDaemon( ids );
 		} else if( args.length == 0 ) {
 			r.retrieveAndStore();
 		} else if( args.length >= 1 ) {
 			r.retrieveAndStore( args );
 		}
 		
+		if( r.config().metrics_log_interval > 0 ) {
+			Metrics.log( System.err );
+		}
+		
 		
 	}
 